@@ -0,0 +1,70 @@
+package bench;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+    @Param({"listing37", "listing38", "listing39", "listing40", "listing41", "listing43", "listing44", "listing45"})
+    public String listing;
+
+    private Object decoder;
+    private Object decodeState;
+    private ByteBuffer memory;
+    private int end;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long instructions;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            instructions = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws Throwable {
+        try (InputStream table = Guest.CPU.getResourceAsStream("8086.txt")) {
+            decoder = (Object) Guest.NEW_DECODER.invokeExact(table);
+        }
+        decodeState = (Object) Guest.NEW_DECODE_STATE.invokeExact();
+        memory = Guest.image(listing);
+        end = memory.limit();
+        memory.clear();
+    }
+
+    @Benchmark
+    public int decode(Counters counters) throws Throwable {
+        int address = 0;
+        int count = 0;
+        while (address < end) {
+            Guest.DECODE.invokeExact(decoder, decodeState, memory, address);
+            address += (int) Guest.LENGTH.invokeExact(decodeState);
+            count++;
+        }
+        counters.instructions += count;
+        return address;
+    }
+}
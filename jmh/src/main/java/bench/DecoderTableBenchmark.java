@@ -0,0 +1,44 @@
+package bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecoderTableBenchmark {
+    private byte[] table;
+    private byte[] tables;
+
+    @Setup
+    public void setup() throws IOException {
+        table = Guest.resource("8086.txt");
+        tables = Guest.resource("8086.bin");
+    }
+
+    @Benchmark
+    public Object buildDecoder() throws Throwable {
+        return (Object) Guest.NEW_DECODER.invokeExact((InputStream) new ByteArrayInputStream(table));
+    }
+
+    @Benchmark
+    public Object loadDecoder() throws Throwable {
+        return (Object) Guest.READ_DECODER.invokeExact((InputStream) new ByteArrayInputStream(tables));
+    }
+}
@@ -0,0 +1,53 @@
+package bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EmulatorBenchmark {
+    // listing41 is left out: its conditional jumps can spin forever depending on the flags it starts with.
+    @Param({"listing37", "listing38", "listing39", "listing40", "listing43", "listing44", "listing45"})
+    public String listing;
+
+    @Param({"threaded", "jit"})
+    public String mode;
+
+    private Object cpu;
+    private Object jit;
+    private ByteBuffer image;
+
+    @Setup
+    public void setup() throws Throwable {
+        cpu = (Object) Guest.NEW_CPU.invokeExact();
+        jit = (Object) Guest.NEW_JIT.invokeExact(1024 * 1024, 16);
+        image = Guest.image(listing);
+    }
+
+    @Benchmark
+    public Object run() throws Throwable {
+        Guest.LOAD.invokeExact(cpu, image);
+        if (mode.equals("jit")) {
+            Guest.RUN_JIT.invokeExact(cpu, jit);
+        } else {
+            Guest.RUN_THREADED.invokeExact(cpu);
+        }
+        return cpu;
+    }
+}
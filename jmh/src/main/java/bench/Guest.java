@@ -0,0 +1,109 @@
+package bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Handles to the emulator classes. They live in the unnamed package, which named packages cannot import,
+ * and JMH does not accept benchmarks in the unnamed package.
+ */
+final class Guest {
+    static final Class<?> DECODER = type("Decoder");
+    static final Class<?> DECODE_STATE = type("DecodeState");
+    static final Class<?> CPU = type("Emu8086");
+    static final Class<?> JIT = type("Jit");
+    static final Class<?> GENERATOR = type("WorkloadGenerator");
+
+    static final MethodHandle NEW_DECODER = handle(() -> MethodHandles.publicLookup()
+            .findStatic(DECODER, "decoder", MethodType.methodType(DECODER, InputStream.class))
+            .asType(MethodType.methodType(Object.class, InputStream.class)));
+    static final MethodHandle READ_DECODER = handle(() -> MethodHandles.publicLookup()
+            .findStatic(DECODER, "read", MethodType.methodType(DECODER, InputStream.class))
+            .asType(MethodType.methodType(Object.class, InputStream.class)));
+    static final MethodHandle DECODE = handle(() -> MethodHandles.publicLookup()
+            .findVirtual(DECODER, "decode", MethodType.methodType(void.class, DECODE_STATE, ByteBuffer.class, int.class))
+            .asType(MethodType.methodType(void.class, Object.class, Object.class, ByteBuffer.class, int.class)));
+    static final MethodHandle NEW_DECODE_STATE = handle(() -> MethodHandles.publicLookup()
+            .findConstructor(DECODE_STATE, MethodType.methodType(void.class))
+            .asType(MethodType.methodType(Object.class)));
+    static final MethodHandle LENGTH = handle(() -> MethodHandles.publicLookup()
+            .findGetter(DECODE_STATE, "length", int.class)
+            .asType(MethodType.methodType(int.class, Object.class)));
+
+    static final MethodHandle NEW_CPU = handle(() -> MethodHandles.publicLookup()
+            .findConstructor(CPU, MethodType.methodType(void.class))
+            .asType(MethodType.methodType(Object.class)));
+    static final MethodHandle LOAD = handle(() -> MethodHandles.publicLookup()
+            .findVirtual(CPU, "load", MethodType.methodType(void.class, ByteBuffer.class))
+            .asType(MethodType.methodType(void.class, Object.class, ByteBuffer.class)));
+    static final MethodHandle RUN_THREADED = handle(() -> MethodHandles.publicLookup()
+            .findVirtual(CPU, "runThreaded", MethodType.methodType(void.class))
+            .asType(MethodType.methodType(void.class, Object.class)));
+    static final MethodHandle NEW_JIT = handle(() -> MethodHandles.publicLookup()
+            .findConstructor(JIT, MethodType.methodType(void.class, int.class, int.class))
+            .asType(MethodType.methodType(Object.class, int.class, int.class)));
+    static final MethodHandle RUN_JIT = handle(() -> MethodHandles.publicLookup()
+            .findVirtual(CPU, "runJit", MethodType.methodType(void.class, JIT))
+            .asType(MethodType.methodType(void.class, Object.class, Object.class)));
+
+
+    static final MethodHandle LOAD_GENERATOR = handle(() -> MethodHandles.publicLookup()
+            .findStatic(GENERATOR, "load", MethodType.methodType(GENERATOR))
+            .asType(MethodType.methodType(Object.class)));
+    static final MethodHandle SET_EXECUTABLE = handle(() -> MethodHandles.publicLookup()
+            .findVirtual(GENERATOR, "setExecutable", MethodType.methodType(void.class, boolean.class))
+            .asType(MethodType.methodType(void.class, Object.class, boolean.class)));
+    static final MethodHandle SET_LOOPS = handle(() -> MethodHandles.publicLookup()
+            .findVirtual(GENERATOR, "setLoops", MethodType.methodType(void.class, int.class, int.class, int.class))
+            .asType(MethodType.methodType(void.class, Object.class, int.class, int.class, int.class)));
+    static final MethodHandle GENERATE = handle(() -> MethodHandles.publicLookup()
+            .findVirtual(GENERATOR, "generate", MethodType.methodType(byte[].class, long.class, int.class))
+            .asType(MethodType.methodType(byte[].class, Object.class, long.class, int.class)));
+
+    private Guest() {
+    }
+
+    static byte[] resource(String name) throws IOException {
+        try (InputStream in = CPU.getResourceAsStream(name)) {
+            if (in == null) {
+                throw new IOException("Missing resource: " + name);
+            }
+            return in.readAllBytes();
+        }
+    }
+
+    static ByteBuffer image(String name) throws IOException {
+        return image(resource(name));
+    }
+
+    static ByteBuffer image(byte[] bytes) {
+        ByteBuffer memory = ByteBuffer.allocate(1024 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+        memory.put(0, bytes);
+        return memory.limit(bytes.length);
+    }
+
+    private static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle handle(HandleLookup lookup) {
+        try {
+            return lookup.find();
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private interface HandleLookup {
+        MethodHandle find() throws ReflectiveOperationException;
+    }
+}
@@ -0,0 +1,79 @@
+package bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decodes or runs generated workloads that are much larger than the listings. Decoding walks a decode-only workload
+ * that uses every encoding, running executes an image of short loops that each repeat their body a few times.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WorkloadBenchmark {
+    @Param({"16384", "65535"})
+    public int size;
+
+    @Param({"1"})
+    public long seed;
+
+    @Param({"decode", "threaded", "jit"})
+    public String mode;
+
+    private Object decoder;
+    private Object state;
+    private Object cpu;
+    private Object jit;
+    private ByteBuffer image;
+    private ByteBuffer memory;
+
+    @Setup
+    public void setup() throws Throwable {
+        Object generator = (Object) Guest.LOAD_GENERATOR.invokeExact();
+        Guest.SET_EXECUTABLE.invokeExact(generator, !mode.equals("decode"));
+        Guest.SET_LOOPS.invokeExact(generator, 1, 8, 256);
+        image = Guest.image((byte[]) Guest.GENERATE.invokeExact(generator, seed, size));
+        memory = image.duplicate().clear();
+        try (var table = Guest.CPU.getResourceAsStream("8086.txt")) {
+            decoder = (Object) Guest.NEW_DECODER.invokeExact(table);
+        }
+        state = (Object) Guest.NEW_DECODE_STATE.invokeExact();
+        cpu = (Object) Guest.NEW_CPU.invokeExact();
+        jit = (Object) Guest.NEW_JIT.invokeExact(1024 * 1024, 16);
+    }
+
+    @Benchmark
+    public Object run() throws Throwable {
+        if (mode.equals("decode")) {
+            int end = image.limit();
+            int address = 0;
+            while (address < end) {
+                Guest.DECODE.invokeExact(decoder, state, memory, address);
+                address += (int) Guest.LENGTH.invokeExact(state);
+            }
+            return address;
+        }
+        Guest.LOAD.invokeExact(cpu, image);
+        if (mode.equals("jit")) {
+            Guest.RUN_JIT.invokeExact(cpu, jit);
+        } else {
+            Guest.RUN_THREADED.invokeExact(cpu);
+        }
+        return cpu;
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * Arithmetic flags for results recorded lazily by {@link Emu8086#setLazyFlags}. Byte results look their flags up in
+ * {@link ByteFlagsTable}, word results compute them without branching on the operand values. The carry or borrow out
+ * is bit 16 of the unmasked result, for additions as well as subtractions.
+ */
+public class Alu {
+    // Kinds of lazily recorded results
+    public static final int NONE = 0;
+    public static final int ADD = 1;
+    public static final int SUB = 2;
+    public static final int LOGIC = 3;
+    public static final int INC = 4;
+    public static final int DEC = 5;
+    // Operations that record one of the kinds above
+    public static final int ADC = 6;
+    public static final int SBB = 7;
+    public static final int AND = 8;
+    public static final int OR = 9;
+    public static final int XOR = 10;
+    public static final int NEG = 11;
+    public static final int NOT = 12;
+
+    public static final int ARITHMETIC_FLAGS = Flag.CARRY.setTestMask
+            | Flag.PARITY.setTestMask
+            | Flag.AUXILIARY_CARRY.setTestMask
+            | Flag.ZERO.setTestMask
+            | Flag.SIGN.setTestMask
+            | Flag.OVERFLOW.setTestMask;
+
+    /**
+     * The flags a kind of result defines. INC and DEC leave the carry flag alone.
+     */
+    public static int defined(int kind) {
+        return kind == INC || kind == DEC ? ARITHMETIC_FLAGS & Flag.CARRY.clearMask : ARITHMETIC_FLAGS;
+    }
+
+    public static int flags(int kind, int op1, int op2, int result, boolean isWide) {
+        if (!isWide) {
+            return ByteFlagsTable.flags(kind, op1, op2, result);
+        }
+        return wordFlags(kind, op1, op2, result);
+    }
+
+    private static int wordFlags(int kind, int op1, int op2, int result) {
+        int value = result & 0xFFFF;
+        int flags = (ParityTable.getParity(value) ? Flag.PARITY.setTestMask : 0)
+                | ((value - 1) >>> 31) << Flag.ZERO.bitIndex
+                | (value >>> 15) << Flag.SIGN.bitIndex;
+        if (kind == LOGIC) {
+            return flags;
+        }
+        int overflow = kind == ADD || kind == INC ? (op1 ^ result) & (op2 ^ result) : (op1 ^ op2) & (op1 ^ result);
+        flags |= ((op1 ^ op2 ^ result) >>> 4 & 1) << Flag.AUXILIARY_CARRY.bitIndex
+                | (overflow >>> 15 & 1) << Flag.OVERFLOW.bitIndex;
+        if (kind == INC || kind == DEC) {
+            return flags;
+        }
+        return flags | (result >>> 16 & 1) << Flag.CARRY.bitIndex;
+    }
+}
@@ -0,0 +1,186 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Runs many programs concurrently. Every worker thread owns one CPU that is reset between programs, and all CPUs
+ * share the same immutable decoder. Final memory images can be dumped to, or compared against, a directory with one
+ * image per program file name.
+ */
+public class BatchRunner {
+    public record Result(Path program, int[] registers, int ip, int flags, long instructions,
+                         List<MemoryDiff.Range> memory, String error) {
+    }
+
+    private final Decoder decoder;
+    private final String mode;
+    private final int threads;
+    private Path dumpDirectory;
+    private Path expectDirectory;
+    private Path image;
+    private long maxInstructions = Long.MAX_VALUE;
+
+    public BatchRunner(Decoder decoder, String mode, int threads) {
+        if (!mode.equals("--switch") && !mode.equals("--threaded") && !mode.equals("--jit")) {
+            throw new IllegalArgumentException("Batch mode does not support " + mode);
+        }
+        this.decoder = decoder;
+        this.mode = mode;
+        this.threads = threads;
+    }
+
+    public void setDumpDirectory(Path dumpDirectory) {
+        this.dumpDirectory = dumpDirectory;
+    }
+
+    public void setExpectDirectory(Path expectDirectory) {
+        this.expectDirectory = expectDirectory;
+    }
+
+    /**
+     * Starts every program from a memory image instead of zeroed memory. Each worker maps the image privately.
+     */
+    public void setImage(Path image) {
+        this.image = image;
+    }
+
+    /**
+     * Stops a program after this many instructions and reports it as failed, so one endless program cannot hold a
+     * worker for the rest of the batch.
+     */
+    public void setMaxInstructions(long maxInstructions) {
+        this.maxInstructions = maxInstructions;
+    }
+
+    /**
+     * Lists the programs in a directory, or the programs named in a manifest file with one path per line relative
+     * to the manifest.
+     */
+    public static List<Path> programs(Path source) throws IOException {
+        if (Files.isDirectory(source)) {
+            try (Stream<Path> files = Files.list(source)) {
+                return files.filter(Files::isRegularFile).sorted().toList();
+            }
+        }
+
+        Path base = source.toAbsolutePath().getParent();
+        List<Path> programs = new ArrayList<>();
+        for (String line : Files.readAllLines(source)) {
+            line = line.strip();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            programs.add(base.resolve(line));
+        }
+        return programs;
+    }
+
+    public Result[] run(List<Path> programs) throws IOException, InterruptedException {
+        Result[] results = new Result[programs.size()];
+        AtomicInteger next = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                workers.add(pool.submit(() -> {
+                    Emu8086 cpu = image != null
+                            ? Emu8086.map(decoder, image, FileChannel.MapMode.PRIVATE)
+                            : new Emu8086(decoder);
+                    Snapshot initial = cpu.snapshot();
+                    Jit jit = mode.equals("--jit") ? new Jit(cpu.memory().capacity(), Jit.DEFAULT_HOT_THRESHOLD) : null;
+                    ByteBuffer expected = expectDirectory != null ? ByteBuffer.allocate(cpu.memory().capacity()) : null;
+                    int index;
+                    while ((index = next.getAndIncrement()) < results.length) {
+                        results[index] = run(cpu, initial, jit, expected, programs.get(index));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IOException("Batch worker failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return results;
+    }
+
+    private Result run(Emu8086 cpu, Snapshot initial, Jit jit, ByteBuffer expected, Path program) {
+        cpu.reset(initial);
+        List<MemoryDiff.Range> memory = null;
+        String error = null;
+        try {
+            cpu.load(program);
+            switch (mode) {
+                case "--switch" -> cpu.run(maxInstructions);
+                case "--threaded" -> cpu.runThreaded(maxInstructions);
+                // Loading the program and resetting memory invalidate the pages of any stale compiled block
+                case "--jit" -> cpu.runJit(jit, maxInstructions);
+                default -> throw new IllegalArgumentException("Unknown mode: " + mode);
+            }
+            if (cpu.isRunning()) {
+                error = "Instruction limit exceeded: " + cpu.instructions();
+            }
+            Path name = program.getFileName();
+            if (dumpDirectory != null) {
+                cpu.dump(dumpDirectory.resolve(name));
+            }
+            if (expectDirectory != null) {
+                memory = MemoryDiff.compare(MemoryDiff.read(expectDirectory.resolve(name), expected), cpu.memory());
+            }
+        } catch (IOException e) {
+            error = e.getMessage();
+        } catch (RuntimeException e) {
+            // A program that crashes the emulator fails on its own instead of aborting the batch
+            error = e.toString();
+        }
+        return new Result(program, cpu.registers.clone(), cpu.ip, cpu.getFlags(), cpu.instructions(), memory, error);
+    }
+
+    public static void report(Result[] results, PrintStream out) {
+        StringBuilder line = new StringBuilder();
+        for (Result result : results) {
+            line.setLength(0);
+            line.append(result.program()).append(':');
+            if (result.error() != null) {
+                line.append(" error: ").append(result.error());
+            }
+            appendState(line, result);
+            if (result.memory() != null) {
+                line.append(" memory=").append(MemoryDiff.format(result.memory()));
+            }
+            out.println(line);
+        }
+    }
+
+    /**
+     * Appends the word registers, IP, flags and instruction count of a result.
+     */
+    static void appendState(StringBuilder line, Result result) {
+        for (Register register : Register.values()) {
+            if (register.isWide) {
+                line.append(' ').append(register).append(String.format("=0x%04x", result.registers()[register.number]));
+            }
+        }
+        line.append(String.format(" IP=0x%04x flags=", result.ip()));
+        for (Flag flag : Flag.values()) {
+            if ((result.flags() & flag.setTestMask) != 0) {
+                line.append(flag.name().charAt(0));
+            }
+        }
+        line.append(" instructions=").append(result.instructions());
+    }
+}
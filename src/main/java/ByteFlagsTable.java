@@ -0,0 +1,53 @@
+public class ByteFlagsTable {
+    private static final char[] ADD = new char[1 << 17];
+    private static final char[] SUB = new char[1 << 17];
+    private static final char[] LOGIC = new char[256];
+
+    static {
+        // Locals rather than static fields, which compiled code cannot touch while the class is being initialized
+        char[] add = ADD;
+        char[] sub = SUB;
+        char[] logic = LOGIC;
+        // Parity, zero and sign only depend on the result byte
+        for (int i = 0; i < logic.length; i++) {
+            logic[i] = (char) ((ParityTable.getParity(i) ? Flag.PARITY.setTestMask : 0)
+                    | (i == 0 ? Flag.ZERO.setTestMask : 0)
+                    | (i >>> 7) << Flag.SIGN.bitIndex);
+        }
+        int carryShift = Flag.CARRY.bitIndex;
+        int auxiliaryCarryShift = Flag.AUXILIARY_CARRY.bitIndex;
+        int overflowShift = Flag.OVERFLOW.bitIndex;
+        for (int i = 0; i < add.length; i++) {
+            int op1 = i >> 9;
+            int op2 = (i >> 1) & 0xFF;
+            int sum = op1 + op2 + (i & 1);
+            int difference = op1 - op2 - (i & 1);
+            add[i] = (char) (logic[sum & 0xFF]
+                    | ((sum >>> 8) & 1) << carryShift
+                    | ((op1 ^ op2 ^ sum) >>> 4 & 1) << auxiliaryCarryShift
+                    | (((op1 ^ sum) & (op2 ^ sum)) >>> 7 & 1) << overflowShift);
+            sub[i] = (char) (logic[difference & 0xFF]
+                    | ((difference >>> 8) & 1) << carryShift
+                    | ((op1 ^ op2 ^ difference) >>> 4 & 1) << auxiliaryCarryShift
+                    | (((op1 ^ op2) & (op1 ^ difference)) >>> 7 & 1) << overflowShift);
+        }
+    }
+
+    private static int index(int op1, int op2, int carry) {
+        return (op1 & 0xFF) << 9 | (op2 & 0xFF) << 1 | carry;
+    }
+
+    /**
+     * Looks up the flags of a byte result. The carry in of an addition or subtraction is whatever the result differs
+     * by from the plain sum or difference of the operands.
+     */
+    public static int flags(int kind, int op1, int op2, int result) {
+        return switch (kind) {
+            case Alu.ADD -> ADD[index(op1, op2, (result - op1 - op2) & 1)];
+            case Alu.SUB -> SUB[index(op1, op2, (op1 - op2 - result) & 1)];
+            case Alu.INC -> ADD[index(op1, 1, 0)] & Flag.CARRY.clearMask;
+            case Alu.DEC -> SUB[index(op1, 1, 0)] & Flag.CARRY.clearMask;
+            default -> LOGIC[result & 0xFF];
+        };
+    }
+}
@@ -0,0 +1,268 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Map;
+
+public class ClassFileWriter {
+    // Version 49 class files are verified without stack map frames, which keeps generation simple.
+    private static final int CLASS_FILE_VERSION = 49;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private final ByteArrayOutputStream constantPoolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream constantPool = new DataOutputStream(constantPoolBytes);
+    private final Map<String, Integer> constants = new HashMap<>();
+    private int constantCount = 1;
+
+    private final ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+    private final DataOutputStream methods = new DataOutputStream(methodBytes);
+    private int methodCount;
+
+    private final int thisClass;
+    private final int superClass;
+
+    public ClassFileWriter(String className, String superClassName) {
+        thisClass = classRef(className);
+        superClass = classRef(superClassName);
+    }
+
+    public Code method(int access, String name, String descriptor, int maxStack, int maxLocals) {
+        return new Code(access, utf8(name), utf8(descriptor), maxStack, maxLocals);
+    }
+
+    public byte[] toByteArray() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(CLASS_FILE_VERSION);
+            out.writeShort(constantCount);
+            constantPoolBytes.writeTo(out);
+            out.writeShort(0x0031); // public final super
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0);
+            out.writeShort(0);
+            out.writeShort(methodCount);
+            methodBytes.writeTo(out);
+            out.writeShort(0);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    int utf8(String value) {
+        return constant("U" + value, CONSTANT_UTF8, out -> out.writeUTF(value));
+    }
+
+    int integer(int value) {
+        return constant("I" + value, CONSTANT_INTEGER, out -> out.writeInt(value));
+    }
+
+    int classRef(String name) {
+        int nameIndex = utf8(name);
+        return constant("C" + name, CONSTANT_CLASS, out -> out.writeShort(nameIndex));
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_FIELDREF, owner, name, descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_METHODREF, owner, name, descriptor);
+    }
+
+    int interfaceMethodRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_INTERFACE_METHODREF, owner, name, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        int ownerIndex = classRef(owner);
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        int nameAndType = constant("N" + name + ":" + descriptor, CONSTANT_NAME_AND_TYPE, out -> {
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+        });
+        return constant(tag + owner + "." + name + ":" + descriptor, tag, out -> {
+            out.writeShort(ownerIndex);
+            out.writeShort(nameAndType);
+        });
+    }
+
+    private int constant(String key, int tag, ConstantBody body) {
+        Integer index = constants.get(key);
+        if (index != null) {
+            return index;
+        }
+        try {
+            constantPool.writeByte(tag);
+            body.write(constantPool);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        int newIndex = constantCount++;
+        constants.put(key, newIndex);
+        return newIndex;
+    }
+
+    private interface ConstantBody {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    public class Code {
+        private final int access;
+        private final int name;
+        private final int descriptor;
+        private final int maxStack;
+        private final int maxLocals;
+        private final CodeBytes code = new CodeBytes();
+
+        private Code(int access, int name, int descriptor, int maxStack, int maxLocals) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.maxStack = maxStack;
+            this.maxLocals = maxLocals;
+        }
+
+        public Code op(int opcode) {
+            code.write(opcode);
+            return this;
+        }
+
+        public Code aload(int local) {
+            return localOp(0x19, 0x2a, local);
+        }
+
+        public Code astore(int local) {
+            return localOp(0x3a, 0x4b, local);
+        }
+
+        public Code iload(int local) {
+            return localOp(0x15, 0x1a, local);
+        }
+
+        public Code istore(int local) {
+            return localOp(0x36, 0x3b, local);
+        }
+
+        private Code localOp(int opcode, int shortOpcode, int local) {
+            if (local < 4) {
+                code.write(shortOpcode + local);
+            } else {
+                code.write(opcode);
+                code.write(local);
+            }
+            return this;
+        }
+
+        /**
+         * Emits a branch with an unresolved offset and returns its position for {@link #target}.
+         */
+        public int branch(int opcode) {
+            int position = code.size();
+            code.write(opcode);
+            u2(0);
+            return position;
+        }
+
+        /**
+         * Points the branch emitted at {@code position} at the next instruction.
+         */
+        public Code target(int position) {
+            code.setShort(position + 1, code.size() - position);
+            return this;
+        }
+
+        public Code iconst(int value) {
+            if (value >= -1 && value <= 5) {
+                code.write(0x03 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                code.write(0x10);
+                code.write(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                code.write(0x11);
+                u2(value);
+            } else {
+                code.write(0x13);
+                u2(integer(value));
+            }
+            return this;
+        }
+
+        public Code getfield(String owner, String name, String descriptor) {
+            code.write(0xb4);
+            u2(fieldRef(owner, name, descriptor));
+            return this;
+        }
+
+        public Code putfield(String owner, String name, String descriptor) {
+            code.write(0xb5);
+            u2(fieldRef(owner, name, descriptor));
+            return this;
+        }
+
+        public Code invokevirtual(String owner, String name, String descriptor) {
+            code.write(0xb6);
+            u2(methodRef(owner, name, descriptor));
+            return this;
+        }
+
+        public Code invokespecial(String owner, String name, String descriptor) {
+            code.write(0xb7);
+            u2(methodRef(owner, name, descriptor));
+            return this;
+        }
+
+        public Code invokeinterface(String owner, String name, String descriptor, int argumentSlots) {
+            code.write(0xb9);
+            u2(interfaceMethodRef(owner, name, descriptor));
+            code.write(argumentSlots + 1);
+            code.write(0);
+            return this;
+        }
+
+        private void u2(int value) {
+            code.write(value >> 8);
+            code.write(value);
+        }
+
+        public void end() {
+            try {
+                methods.writeShort(access);
+                methods.writeShort(name);
+                methods.writeShort(descriptor);
+                methods.writeShort(1);
+                methods.writeShort(utf8("Code"));
+                methods.writeInt(12 + code.size());
+                methods.writeShort(maxStack);
+                methods.writeShort(maxLocals);
+                methods.writeInt(code.size());
+                code.writeTo(methods);
+                methods.writeShort(0);
+                methods.writeShort(0);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            methodCount++;
+        }
+    }
+
+    private static class CodeBytes extends ByteArrayOutputStream {
+        void setShort(int index, int value) {
+            buf[index] = (byte) (value >> 8);
+            buf[index + 1] = (byte) value;
+        }
+    }
+}
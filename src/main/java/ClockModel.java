@@ -0,0 +1,153 @@
+/**
+ * Estimates 8086 clock counts using the instruction timings from the 8086 family user's manual: a base count per
+ * opcode and operand form, the effective address calculation time and 4 extra clocks for every word transfer
+ * to or from an odd address. Instructions without a modelled timing count as zero clocks.
+ */
+public class ClockModel {
+    private static final int ODD_WORD_PENALTY = 4;
+
+    private long total;
+    private int last;
+
+    public long total() {
+        return total;
+    }
+
+    public int last() {
+        return last;
+    }
+
+    /**
+     * Captures the state the count depends on before the instruction executes: the address of a memory operand, or
+     * CX for a repeated string instruction.
+     */
+    static int before(Emu8086 cpu, DecodeState instruction) {
+        if ((instruction.operands & DecodeState.RM_MEMORY) != 0) {
+            return cpu.effectiveAddress(instruction);
+        } else if (instruction.isRepeat) {
+            return cpu.getRegister(Register.CX.number, true);
+        }
+        return 0;
+    }
+
+    int count(Emu8086 cpu, int address, DecodeState instruction, int before) {
+        int clocks = switch (instruction.opcode) {
+            case MOVS, CMPS, SCAS, LODS, STDS -> string(cpu, instruction, before);
+            default -> base(cpu, address, instruction);
+        };
+        int ea = before;
+        if ((instruction.operands & DecodeState.RM_MEMORY) != 0) {
+            if (!instruction.isAccumulator) {
+                clocks += effectiveAddress(instruction);
+            }
+            if (instruction.isWide && (ea & 1) != 0) {
+                clocks += ODD_WORD_PENALTY * transfers(instruction);
+            }
+        }
+        last = clocks;
+        total += clocks;
+        return clocks;
+    }
+
+    static int effectiveAddress(DecodeState instruction) {
+        int clocks = switch (instruction.rm) {
+            case 0, 3 -> 7;
+            case 1, 2 -> 8;
+            case 4, 5, 6, 7 -> 5;
+            default -> 6;
+        };
+        return instruction.hasDisplacement ? clocks + 4 : clocks;
+    }
+
+    /**
+     * Counts the word transfers to or from the memory operand: read-modify-write forms read and write it, while
+     * a register destination only reads it.
+     */
+    private static int transfers(DecodeState i) {
+        return switch (i.opcode) {
+            case MOV, CMP, TEST, PUSH, POP, JMP, CALL -> 1;
+            case ADD, ADC, SUB, SBB, AND, OR, XOR -> i.isToReg ? 1 : 2;
+            case LEA -> 0;
+            default -> 2;
+        };
+    }
+
+    private static int string(Emu8086 cpu, DecodeState i, int count) {
+        if (!i.isRepeat) {
+            return switch (i.opcode) {
+                case MOVS -> 18;
+                case CMPS -> 22;
+                case SCAS -> 15;
+                case LODS -> 12;
+                default -> 11;
+            };
+        }
+        int repetitions = count - cpu.getRegister(Register.CX.number, true);
+        return 9 + repetitions * switch (i.opcode) {
+            case MOVS -> 17;
+            case CMPS -> 22;
+            case SCAS -> 15;
+            case LODS -> 13;
+            default -> 10;
+        };
+    }
+
+    private static int base(Emu8086 cpu, int address, DecodeState i) {
+        int operands = i.operands;
+        boolean memory = (operands & DecodeState.RM_MEMORY) != 0;
+        boolean hasReg = (operands & DecodeState.REG_REGISTER) != 0;
+        boolean hasRm = (operands & DecodeState.RM_OPERAND) != 0;
+        boolean taken = cpu.fetchAddress() != ((address + i.length) & Emu8086.ADDRESS_MASK);
+
+        return switch (i.opcode) {
+            case MOV -> {
+                if (i.isAccumulator) yield 10;
+                if (!hasRm) yield 4;
+                if (!hasReg) yield memory ? 10 : 4;
+                yield memory ? (i.isToReg ? 8 : 9) : 2;
+            }
+            case ADD, ADC, SUB, SBB, AND, OR, XOR -> {
+                if (!hasRm) yield 4;
+                if (!hasReg) yield memory ? 17 : 4;
+                yield memory ? (i.isToReg ? 9 : 16) : 3;
+            }
+            case CMP -> {
+                if (!hasRm) yield 4;
+                if (!hasReg) yield memory ? 10 : 4;
+                yield memory ? 9 : 3;
+            }
+            case TEST -> {
+                if (!hasRm) yield 4;
+                if (!hasReg) yield memory ? 11 : 5;
+                yield memory ? 9 : 3;
+            }
+            case INC, DEC -> memory ? 15 : (hasRm ? 3 : 2);
+            case NEG, NOT -> memory ? 16 : 3;
+            case PUSH -> memory ? 16 : (!hasRm && i.reg >= 8 ? 10 : 11);
+            case POP -> memory ? 17 : 8;
+            case XCHG -> memory ? 17 : (i.isAccumulator ? 3 : 4);
+            case LEA -> 2;
+            case SHL, SHR, SAR, ROL, ROR, RCL, RCR -> i.isRotateCL
+                    ? (memory ? 20 : 8) + 4 * cpu.getRegister(Register.CL.number, false)
+                    : (memory ? 15 : 2);
+            case JE, JNE, JL, JNL, JLE, JNLE, JB, JNB, JBE, JNBE, JP, JNP, JO, JNO, JS, JNS -> taken ? 16 : 4;
+            case LOOP -> taken ? 17 : 5;
+            case LOOPZ -> taken ? 18 : 6;
+            case LOOPNZ -> taken ? 19 : 5;
+            case JCXZ -> taken ? 18 : 6;
+            case JMP -> hasRm ? (memory ? 18 : 11) : 15;
+            case CALL -> hasRm ? (memory ? 21 : 16) : i.isFar ? 28 : 19;
+            case RET -> i.immediate != 0 ? 12 : 8;
+            case INT -> i.length == 1 ? 52 : 51;
+            case INTO -> taken ? 53 : 4;
+            case IRET -> 24;
+            case LAHF, SAHF -> 4;
+            case PUSHF -> 10;
+            case POPF -> 8;
+            case CBW, CLC, CMC, STC, CLD, STD, CLI, STI, HLT -> 2;
+            case CWD -> 5;
+            case XLAT -> 11;
+            default -> 0;
+        };
+    }
+}
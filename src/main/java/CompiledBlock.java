@@ -0,0 +1,28 @@
+public abstract class CompiledBlock {
+    int start;
+    int end;
+    int codeBase;
+    int[] generations;
+    Handler[] handlers;
+    DecodeState[] instructions;
+    // Blocks last seen after this one, followed by the dispatcher in Jit.block rather than by the generated code
+    CompiledBlock successor0;
+    CompiledBlock successor1;
+
+    public abstract int execute(Emu8086 cpu);
+
+    boolean isValid(Emu8086 cpu) {
+        if (codeBase != cpu.segmentBases[DecodeState.CS]) {
+            return false;
+        }
+        DecodeCache decodeCache = cpu.decodeCache();
+        int[] g = generations;
+        int address = start;
+        for (int i = 0; i < g.length; i++, address += DecodeCache.PAGE_SIZE) {
+            if (decodeCache.generation(address) != g[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,89 @@
+import java.io.IOException;
+
+/**
+ * Stepping debugger on top of the switch interpreter. Breakpoints are a bitmap over linear code addresses that only
+ * the debugger's own loop consults, so regular execution does not pay for them. Watchpoints stop execution after the
+ * instruction that read or wrote a watched byte. Only the switch interpreter that the debugger steps checks them, so
+ * the memory accessors of the threaded and compiled engines carry no watchpoint test.
+ */
+public class Debugger {
+    public enum Stop {
+        STEPPED,
+        BREAKPOINT,
+        WATCHPOINT,
+        HALTED,
+    }
+
+    private final Emu8086 cpu;
+    private final long[] breakpoints = new long[Emu8086.MEMORY_SIZE >> 6];
+    private final Watchpoints watchpoints = new Watchpoints();
+
+    public Debugger(Emu8086 cpu) {
+        this.cpu = cpu;
+    }
+
+    public Emu8086 cpu() {
+        return cpu;
+    }
+
+    public void setBreakpoint(int address) {
+        address &= Emu8086.ADDRESS_MASK;
+        breakpoints[address >> 6] |= 1L << address;
+    }
+
+    public void clearBreakpoint(int address) {
+        address &= Emu8086.ADDRESS_MASK;
+        breakpoints[address >> 6] &= ~(1L << address);
+    }
+
+    public boolean isBreakpoint(int address) {
+        address &= Emu8086.ADDRESS_MASK;
+        return (breakpoints[address >> 6] & (1L << address)) != 0;
+    }
+
+    public void watch(int address, int length, boolean read, boolean write) {
+        watchpoints.set(address, length, (read ? Watchpoints.READ : 0) | (write ? Watchpoints.WRITE : 0), true);
+        cpu.setWatchpoints(watchpoints.isEmpty() ? null : watchpoints);
+    }
+
+    public void unwatch(int address, int length) {
+        watchpoints.set(address, length, 0, false);
+        cpu.setWatchpoints(watchpoints.isEmpty() ? null : watchpoints);
+    }
+
+    /**
+     * Executes up to {@code count} instructions. Stops before an instruction with a breakpoint, except for the first
+     * one so that execution can resume from a breakpoint, and after an instruction that hit a watchpoint.
+     */
+    public Stop step(long count) throws IOException {
+        for (long n = 0; n < count; n++) {
+            if (!cpu.isRunning()) {
+                return Stop.HALTED;
+            }
+            if (n > 0 && isBreakpoint(cpu.fetchAddress())) {
+                return Stop.BREAKPOINT;
+            }
+            watchpoints.clearHit();
+            cpu.step();
+            if (watchpoints.hitAddress() >= 0) {
+                return Stop.WATCHPOINT;
+            }
+        }
+        return cpu.isRunning() ? Stop.STEPPED : Stop.HALTED;
+    }
+
+    public Stop run() throws IOException {
+        return step(Long.MAX_VALUE);
+    }
+
+    /**
+     * The watched address that stopped the last step, or -1.
+     */
+    public int watchAddress() {
+        return watchpoints.hitAddress();
+    }
+
+    public boolean isWatchWrite() {
+        return watchpoints.hitAddress() >= 0 && watchpoints.hitKind() == Watchpoints.WRITE;
+    }
+}
@@ -0,0 +1,103 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class DecodeCache {
+    static final int PAGE_SHIFT = 8;
+    static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private final Decoder decoder;
+    private final int addressMask;
+    private final DecodeState[][] pages;
+    private final int[] generations;
+
+    // A forked CPU that still shares pages with its snapshot, which must copy them before they are decoded
+    private Emu8086 fork;
+    private long hits;
+    private long misses;
+
+    public DecodeCache(Decoder decoder, int memorySize) {
+        this.decoder = decoder;
+        this.addressMask = memorySize - 1;
+        this.pages = new DecodeState[memorySize >> PAGE_SHIFT][];
+        this.generations = new int[memorySize >> PAGE_SHIFT];
+    }
+
+    public DecodeState get(ByteBuffer memory, int address) throws IOException {
+        int page = address >> PAGE_SHIFT;
+        DecodeState[] entries = pages[page];
+        if (entries == null) {
+            entries = new DecodeState[PAGE_SIZE];
+            pages[page] = entries;
+        }
+
+        DecodeState entry = entries[address & PAGE_MASK];
+        if (entry != null && isValid(entry, address)) {
+            hits++;
+            return entry;
+        }
+
+        misses++;
+        if (fork != null) {
+            // An instruction can extend into the next page
+            fork.unshare(address & ~PAGE_MASK, 2 * PAGE_SIZE);
+        }
+        if (entry == null) {
+            entry = new DecodeState();
+            entries[address & PAGE_MASK] = entry;
+        }
+        decoder.decode(entry, memory, address);
+        entry.handler = null;
+        entry.fastHandler = null;
+        entry.isFused = false;
+        entry.liveFlags = FlagLiveness.UNKNOWN;
+        entry.startGeneration = generations[page];
+        entry.endGeneration = generations[((address + entry.length - 1) & addressMask) >> PAGE_SHIFT];
+        return entry;
+    }
+
+    void setFork(Emu8086 fork) {
+        this.fork = fork;
+    }
+
+    private boolean isValid(DecodeState entry, int address) {
+        int endPage = ((address + entry.length - 1) & addressMask) >> PAGE_SHIFT;
+        return entry.startGeneration == generations[address >> PAGE_SHIFT]
+                && entry.endGeneration == generations[endPage];
+    }
+
+    public void invalidate(int address) {
+        generations[(address & addressMask) >> PAGE_SHIFT]++;
+    }
+
+    public void invalidate(int address, int length) {
+        if (length <= 0) {
+            return;
+        }
+        int firstPage = (address & addressMask) >> PAGE_SHIFT;
+        int lastPage = ((address + length - 1) & addressMask) >> PAGE_SHIFT;
+        for (int page = firstPage; ; page = (page + 1) % generations.length) {
+            generations[page]++;
+            if (page == lastPage) {
+                break;
+            }
+        }
+    }
+
+    public void resetStatistics() {
+        hits = 0;
+        misses = 0;
+    }
+
+    public int generation(int address) {
+        return generations[(address & addressMask) >> PAGE_SHIFT];
+    }
+
+    public long hits() {
+        return hits;
+    }
+
+    public long misses() {
+        return misses;
+    }
+}
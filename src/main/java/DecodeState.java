@@ -1,10 +1,37 @@
 public class DecodeState {
+    public static final int OPERAND_NONE = 0;
+    public static final int REG_REGISTER = 1;
+    public static final int RM_REGISTER = 2;
+    public static final int RM_MEMORY = 4;
+    public static final int RM_OPERAND = RM_REGISTER | RM_MEMORY;
+
+    public static final int ES = 0;
+    public static final int CS = 1;
+    public static final int SS = 2;
+    public static final int DS = 3;
+
     public Opcode opcode;
     public boolean isToReg;
     public boolean isWide;
     public boolean isRotateCL;
     public boolean isWhileZero;
-    public Register reg;
-    public Address rm;
+    public boolean isRepeat;
+    public boolean isAccumulator;
+    // Direct far JMP or CALL: the offset is in immediate and the segment in displacement
+    public boolean isFar;
+    public boolean hasDisplacement;
+    public int operands;
+    public int reg;
+    public int rm;
+    public int segment;
+    public int displacement;
     public int immediate;
+    public int length;
+    public int startGeneration;
+    public int endGeneration;
+    public Handler handler;
+    // Handler for uninstrumented threaded execution, which may be fused with the next instruction or skip dead flags
+    public Handler fastHandler;
+    public boolean isFused;
+    public int liveFlags;
 }
@@ -0,0 +1,34 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Build step that parses 8086.txt once and writes the resulting dispatch tables as 8086.bin.
+ */
+public class DecodeTableGenerator {
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: DecodeTableGenerator <8086.txt> <8086.bin>");
+            System.exit(1);
+        }
+
+        Decoder decoder;
+        try (InputStream in = Files.newInputStream(Path.of(args[0]))) {
+            decoder = Decoder.decoder(in);
+        }
+
+        Path output = Path.of(args[1]);
+        Files.createDirectories(output.toAbsolutePath().getParent());
+        try (OutputStream out = Files.newOutputStream(output)) {
+            decoder.write(out);
+        }
+
+        try (InputStream in = Files.newInputStream(output)) {
+            if (!decoder.hasSameTables(Decoder.read(in))) {
+                throw new IOException("Generated decode tables do not match " + args[0]);
+            }
+        }
+    }
+}
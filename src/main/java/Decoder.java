@@ -1,54 +1,205 @@
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.EnumSet;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
 
 public class Decoder {
-    private Register[] SEGMENT_REGISTER_TABLE = new Register[]{
-            Register.ES,
-            Register.CS,
-            Register.SS,
-            Register.DS
-    };
-
-    private Register[] BYTE_REGISTER_TABLE = new Register[]{
-            Register.AL,
-            Register.CL,
-            Register.DL,
-            Register.BL,
-            Register.AH,
-            Register.CH,
-            Register.DH,
-            Register.BH
-    };
-
-    private Register[] WORD_REGISTER_TABLE = new Register[]{
-            Register.AX,
-            Register.CX,
-            Register.DX,
-            Register.BX,
-            Register.SP,
-            Register.BP,
-            Register.SI,
-            Register.DI
-    };
-
-    private EffectiveAddress[] MEM_TABLE = new EffectiveAddress[]{
-            EffectiveAddress.BX_SI,
-            EffectiveAddress.BX_DI,
-            EffectiveAddress.BP_SI,
-            EffectiveAddress.BP_DI,
-            EffectiveAddress.SI,
-            EffectiveAddress.DI,
-            EffectiveAddress.BP,
-            EffectiveAddress.BX
-    };
-
-    private OpcodeMatcher[] opcodeMatchers = new OpcodeMatcher[256];
-    private ModRegRmMatcher[][] modRegRmTable = new ModRegRmMatcher[256][];
+    private static final int SEGMENT_REGISTER_BASE = 8;
+    private static final int ADDRESS_MASK = 0xFFFFF;
+    private static final int TABLE_MAGIC = 0x38303836;
+    private static final int TABLE_VERSION = 1;
+
+    private final OpcodeMatcher[] opcodeMatchers = new OpcodeMatcher[256];
+    private final ModRegRmMatcher[][] modRegRmTable = new ModRegRmMatcher[256][];
 
     private Decoder() {
     }
 
+    /**
+     * Returns the decoder for the bundled instruction table. Decoders are immutable after construction, so a single
+     * instance is shared by all CPUs.
+     */
+    public static Decoder shared() {
+        return Shared.INSTANCE;
+    }
+
+    private static final class Shared {
+        static final Decoder INSTANCE;
+
+        static {
+            try {
+                INSTANCE = load();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Loads the decode tables generated from 8086.txt at build time, falling back to parsing the text table
+     * when the binary resource is not on the classpath.
+     */
+    public static Decoder load() throws IOException {
+        try (InputStream tables = Decoder.class.getResourceAsStream("8086.bin")) {
+            if (tables != null) {
+                return read(tables);
+            }
+        }
+        try (InputStream text = Decoder.class.getResourceAsStream("8086.txt")) {
+            if (text == null) {
+                throw new IOException("Missing instruction table");
+            }
+            return decoder(text);
+        }
+    }
+
+    public static Decoder read(InputStream tables) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(tables));
+        if (in.readInt() != TABLE_MAGIC || in.readInt() != TABLE_VERSION) {
+            throw new IOException("Unsupported decode table format");
+        }
+
+        Opcode[] opcodes = Opcode.values();
+        Op[] ops = new Op[in.readUnsignedShort()];
+        for (int i = 0; i < ops.length; i++) {
+            ops[i] = new Op(opcodes[in.readUnsignedByte()], in.readInt());
+        }
+
+        OpcodeMatcher[] opcodeMatchers = new OpcodeMatcher[in.readUnsignedShort()];
+        for (int i = 0; i < opcodeMatchers.length; i++) {
+            opcodeMatchers[i] = new OpcodeMatcher(
+                    in.readUnsignedByte(), in.readUnsignedByte(),
+                    in.readUnsignedByte(),
+                    in.readUnsignedByte(),
+                    in.readUnsignedByte(),
+                    in.readUnsignedByte(),
+                    in.readUnsignedByte(),
+                    in.readUnsignedByte(),
+                    in.readUnsignedByte(),
+                    in.readUnsignedByte(),
+                    in.readUnsignedByte(),
+                    op(ops, in.readShort())
+            );
+        }
+
+        ModRegRmMatcher[] modRegRmMatchers = new ModRegRmMatcher[in.readUnsignedShort()];
+        for (int i = 0; i < modRegRmMatchers.length; i++) {
+            modRegRmMatchers[i] = new ModRegRmMatcher(
+                    in.readUnsignedByte(), in.readUnsignedByte(),
+                    in.readUnsignedByte(), in.readUnsignedByte(),
+                    in.readUnsignedByte(), in.readUnsignedByte(),
+                    in.readUnsignedByte(), in.readUnsignedByte(),
+                    in.readUnsignedByte(), in.readUnsignedByte(),
+                    op(ops, in.readShort())
+            );
+        }
+
+        Decoder d = new Decoder();
+        for (int i = 0; i < 256; i++) {
+            int index = in.readShort();
+            if (index >= 0) {
+                d.opcodeMatchers[i] = opcodeMatchers[index];
+            }
+            if (in.readBoolean()) {
+                d.modRegRmTable[i] = new ModRegRmMatcher[8];
+                for (int j = 0; j < 8; j++) {
+                    index = in.readShort();
+                    if (index >= 0) {
+                        d.modRegRmTable[i][j] = modRegRmMatchers[index];
+                    }
+                }
+            }
+        }
+        return d;
+    }
+
+    private static Op op(Op[] ops, int index) {
+        return index < 0 ? null : ops[index];
+    }
+
+    public void write(OutputStream tables) throws IOException {
+        Map<Op, Integer> ops = new IdentityHashMap<>();
+        Map<OpcodeMatcher, Integer> opcodeIndex = new IdentityHashMap<>();
+        Map<ModRegRmMatcher, Integer> modRegRmIndex = new IdentityHashMap<>();
+        for (int i = 0; i < 256; i++) {
+            OpcodeMatcher o = opcodeMatchers[i];
+            if (o != null && opcodeIndex.putIfAbsent(o, opcodeIndex.size()) == null && o.op() != null) {
+                ops.putIfAbsent(o.op(), ops.size());
+            }
+            if (modRegRmTable[i] != null) {
+                for (ModRegRmMatcher m : modRegRmTable[i]) {
+                    if (m != null && modRegRmIndex.putIfAbsent(m, modRegRmIndex.size()) == null) {
+                        ops.putIfAbsent(m.op(), ops.size());
+                    }
+                }
+            }
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(tables));
+        out.writeInt(TABLE_MAGIC);
+        out.writeInt(TABLE_VERSION);
+
+        out.writeShort(ops.size());
+        for (Op op : ordered(ops, new Op[ops.size()])) {
+            out.writeByte(op.code().ordinal());
+            out.writeInt(op.flags());
+        }
+
+        out.writeShort(opcodeIndex.size());
+        for (OpcodeMatcher o : ordered(opcodeIndex, new OpcodeMatcher[opcodeIndex.size()])) {
+            out.writeByte(o.fixedMask());
+            out.writeByte(o.fixedValue());
+            out.writeByte(o.dMask());
+            out.writeByte(o.wMask());
+            out.writeByte(o.sMask());
+            out.writeByte(o.vMask());
+            out.writeByte(o.zMask());
+            out.writeByte(o.segMask());
+            out.writeByte(o.segShift());
+            out.writeByte(o.regMask());
+            out.writeByte(o.regShift());
+            out.writeShort(o.op() == null ? -1 : ops.get(o.op()));
+        }
+
+        out.writeShort(modRegRmIndex.size());
+        for (ModRegRmMatcher m : ordered(modRegRmIndex, new ModRegRmMatcher[modRegRmIndex.size()])) {
+            out.writeByte(m.fixedMask());
+            out.writeByte(m.fixedValue());
+            out.writeByte(m.modMask());
+            out.writeByte(m.modShift());
+            out.writeByte(m.rmMask());
+            out.writeByte(m.rmShift());
+            out.writeByte(m.regMask());
+            out.writeByte(m.regShift());
+            out.writeByte(m.segMask());
+            out.writeByte(m.segShift());
+            out.writeShort(ops.get(m.op()));
+        }
+
+        for (int i = 0; i < 256; i++) {
+            out.writeShort(opcodeMatchers[i] == null ? -1 : opcodeIndex.get(opcodeMatchers[i]));
+            out.writeBoolean(modRegRmTable[i] != null);
+            if (modRegRmTable[i] != null) {
+                for (ModRegRmMatcher m : modRegRmTable[i]) {
+                    out.writeShort(m == null ? -1 : modRegRmIndex.get(m));
+                }
+            }
+        }
+        out.flush();
+    }
+
+    private static <T> T[] ordered(Map<T, Integer> index, T[] result) {
+        index.forEach((value, i) -> result[i] = value);
+        return result;
+    }
+
+    public boolean hasSameTables(Decoder other) {
+        return Arrays.equals(opcodeMatchers, other.opcodeMatchers)
+                && Arrays.deepEquals(modRegRmTable, other.modRegRmTable);
+    }
+
     public static Decoder decoder(InputStream instructionTable) throws IOException {
         Decoder d = new Decoder();
 
@@ -84,10 +235,10 @@ public class Decoder {
             }
 
             String flagsString = line.toUpperCase();
-            EnumSet<OpcodeFlags> flags = EnumSet.noneOf(OpcodeFlags.class);
+            int flags = 0;
             for (OpcodeFlags flag : OpcodeFlags.values()) {
                 if (flagsString.contains(flag.name())) {
-                    flags.add(flag);
+                    flags |= flag.mask;
                     flagsString = flagsString.replaceAll(flag.name(), "");
                 }
             }
@@ -229,9 +380,26 @@ public class Decoder {
         return d;
     }
 
-    public void decode(DecodeState decodeState, InputStream in) throws IOException {
-        int byte1 = readU8(in);
+    public void decode(DecodeState decodeState, ByteBuffer memory, int address) throws IOException {
+        int p = address;
+        int byte1 = readU8(memory, p++);
         OpcodeMatcher o = opcodeMatchers[byte1];
+        int segmentOverride = -1;
+        boolean isRepeat = false;
+        boolean repeatWhileZero = false;
+        while (o != null && o.op() != null && isPrefix(o.op().code())) {
+            switch (o.op().code()) {
+                case SEGMENT -> segmentOverride = (byte1 & o.segMask) >> o.segShift;
+                case REP -> {
+                    isRepeat = true;
+                    repeatWhileZero = (byte1 & o.zMask) != 0;
+                }
+                default -> {
+                }
+            }
+            byte1 = readU8(memory, p++);
+            o = opcodeMatchers[byte1];
+        }
         if (o == null) {
             throw new IOException("Illegal instruction: " + Integer.toBinaryString(byte1));
         }
@@ -241,21 +409,27 @@ public class Decoder {
         boolean isWide = (byte1 & o.wMask) != 0;
         boolean isSignExtend = (byte1 & o.sMask) != 0;
         boolean isRotateCL = (byte1 & o.vMask) != 0;
-        boolean isWhileZero = (byte1 & o.zMask) != 0;
+        boolean isWhileZero = isRepeat ? repeatWhileZero : (byte1 & o.zMask) != 0;
 
-        Register reg = null;
+        int operands = DecodeState.OPERAND_NONE;
+        int reg = 0;
 
         if (o.regMask != 0) {
-            int regValue = (byte1 & o.regMask) >> o.regShift;
-            reg = isWide ? WORD_REGISTER_TABLE[regValue] : BYTE_REGISTER_TABLE[regValue];
+            reg = (byte1 & o.regMask) >> o.regShift;
+            operands |= DecodeState.REG_REGISTER;
+            // INC, DEC, PUSH, POP and XCHG encode a register in the opcode without a w bit and always use words
+            isWide |= o.wMask == 0;
         } else if (o.segMask != 0) {
-            reg = SEGMENT_REGISTER_TABLE[(byte1 & o.segMask) >> o.segShift];
+            reg = SEGMENT_REGISTER_BASE + ((byte1 & o.segMask) >> o.segShift);
+            operands |= DecodeState.REG_REGISTER;
             isWide = true;
         }
 
-        Address rmAddr = null;
+        int rm = 0;
+        int displacement = 0;
+        boolean hasDisplacement = false;
         if (op == null) {
-            int byte2 = readU8(in);
+            int byte2 = readU8(memory, p++);
             ModRegRmMatcher[] modRegRmMatchers = modRegRmTable[byte1];
             ModRegRmMatcher m = modRegRmMatchers == null ? null : modRegRmMatchers[(byte2 >> 3) & 0x7];
             if (m == null) {
@@ -264,75 +438,103 @@ public class Decoder {
 
             op = m.op();
             int mod = (byte2 & m.modMask) >> m.modShift;
-            int rm = (byte2 & m.rmMask) >> m.rmShift;
+            rm = (byte2 & m.rmMask) >> m.rmShift;
 
             if (m.regMask != 0) {
-                int regValue = (byte2 & m.regMask) >> m.regShift;
-                reg = isWide ? WORD_REGISTER_TABLE[regValue] : BYTE_REGISTER_TABLE[regValue];
+                reg = (byte2 & m.regMask) >> m.regShift;
+                operands |= DecodeState.REG_REGISTER;
             } else if (m.segMask != 0) {
-                reg = SEGMENT_REGISTER_TABLE[(byte2 & m.segMask) >> m.segShift];
+                reg = SEGMENT_REGISTER_BASE + ((byte2 & m.segMask) >> m.segShift);
+                operands |= DecodeState.REG_REGISTER;
                 isWide = true;
             }
 
             switch (mod) {
                 case 0b00 -> {
+                    operands |= DecodeState.RM_MEMORY;
                     if (rm == 0b110) {
-                        rmAddr = new MemoryAddress(EffectiveAddress.DIRECT, readU16(in));
-                    } else {
-                        rmAddr = new MemoryAddress(MEM_TABLE[rm], 0);
+                        rm = EffectiveAddress.DIRECT.ordinal();
+                        displacement = readU16(memory, p);
+                        p += 2;
                     }
                 }
                 case 0b01 -> {
-                    rmAddr = new MemoryAddress(MEM_TABLE[rm], readS8(in));
+                    operands |= DecodeState.RM_MEMORY;
+                    displacement = readS8(memory, p++);
+                    hasDisplacement = true;
                 }
                 case 0b10 -> {
-                    rmAddr = new MemoryAddress(MEM_TABLE[rm], readU16(in));
-                }
-                case 0b11 -> {
-                    rmAddr = isWide ? WORD_REGISTER_TABLE[rm] : BYTE_REGISTER_TABLE[rm];
+                    operands |= DecodeState.RM_MEMORY;
+                    displacement = readU16(memory, p);
+                    p += 2;
+                    hasDisplacement = true;
                 }
+                case 0b11 -> operands |= DecodeState.RM_REGISTER;
             }
-            ;
         }
 
         int immediate = 0;
-        EnumSet<OpcodeFlags> flags = op.flags();
-        for (OpcodeFlags flag : flags) {
-            switch (flag) {
-                case ADDRW -> {
-                    rmAddr = new MemoryAddress(EffectiveAddress.DIRECT, isWide ? readU16(in) : readU8(in));
-                }
-                case DATAW -> immediate = isWide ? readU16(in) : readS8(in);
-                case DATAS -> immediate = isWide ? (isSignExtend ? readS8(in) : readU16(in)) : readU8(in);
-                case UINT8 -> immediate = readU8(in);
-                case UINT16 -> immediate = readU16(in);
-                case SINT8 -> immediate = readS8(in);
-                case SINT16 -> immediate = readS16(in);
-                case TO_ACC -> {
-                    if (reg == null) {
-                        reg = isWide ? Register.AX : Register.AL;
-                        isToReg = true;
-                    } else {
-                        rmAddr = isWide ? Register.AX : Register.AL;
-                        isToReg = false;
-                    }
-                }
-                case FROM_ACC -> {
-                    if (reg == null) {
-                        reg = isWide ? Register.AX : Register.AL;
-                        isToReg = false;
-                    } else {
-                        rmAddr = isWide ? Register.AX : Register.AL;
-                        isToReg = true;
-                    }
-                }
-                case TO_SR -> {
+        boolean isAccumulator = false;
+        boolean isFar = false;
+        int flags = op.flags();
+        if (flags != 0) {
+            if ((flags & OpcodeFlags.ADDRW.mask) != 0) {
+                operands |= DecodeState.RM_MEMORY;
+                rm = EffectiveAddress.DIRECT.ordinal();
+                displacement = readU16(memory, p);
+                p += 2;
+            }
+            if ((flags & OpcodeFlags.DATAW.mask) != 0) {
+                immediate = isWide ? readU16(memory, p) : readS8(memory, p);
+                p += isWide ? 2 : 1;
+            } else if ((flags & OpcodeFlags.DATAS.mask) != 0) {
+                boolean isWord = isWide && !isSignExtend;
+                immediate = isWide ? (isSignExtend ? readS8(memory, p) : readU16(memory, p)) : readU8(memory, p);
+                p += isWord ? 2 : 1;
+            } else if ((flags & OpcodeFlags.UINT8.mask) != 0) {
+                immediate = readU8(memory, p++);
+            } else if ((flags & OpcodeFlags.UINT16.mask) != 0) {
+                immediate = readU16(memory, p);
+                p += 2;
+            } else if ((flags & OpcodeFlags.SINT8.mask) != 0) {
+                immediate = readS8(memory, p++);
+            } else if ((flags & OpcodeFlags.SINT16.mask) != 0) {
+                immediate = readS16(memory, p);
+                p += 2;
+            } else if ((flags & OpcodeFlags.FAR.mask) != 0) {
+                isFar = true;
+                immediate = readU16(memory, p);
+                displacement = readU16(memory, p + 2);
+                p += 4;
+            }
+            if ((flags & OpcodeFlags.TO_ACC.mask) != 0) {
+                isAccumulator = true;
+                if ((operands & DecodeState.REG_REGISTER) == 0) {
+                    operands |= DecodeState.REG_REGISTER;
+                    reg = 0;
                     isToReg = true;
+                } else {
+                    operands |= DecodeState.RM_REGISTER;
+                    rm = 0;
+                    isToReg = false;
                 }
-                case FROM_SR -> {
+            } else if ((flags & OpcodeFlags.FROM_ACC.mask) != 0) {
+                isAccumulator = true;
+                if ((operands & DecodeState.REG_REGISTER) == 0) {
+                    operands |= DecodeState.REG_REGISTER;
+                    reg = 0;
                     isToReg = false;
+                } else {
+                    operands |= DecodeState.RM_REGISTER;
+                    rm = 0;
+                    isToReg = true;
                 }
             }
+            if ((flags & OpcodeFlags.TO_SR.mask) != 0) {
+                isToReg = true;
+            } else if ((flags & OpcodeFlags.FROM_SR.mask) != 0) {
+                isToReg = false;
+            }
         }
 
         decodeState.opcode = op.code();
@@ -340,30 +542,46 @@ public class Decoder {
         decodeState.isWide = isWide;
         decodeState.isRotateCL = isRotateCL;
         decodeState.isWhileZero = isWhileZero;
+        decodeState.isRepeat = isRepeat;
+        decodeState.isAccumulator = isAccumulator;
+        decodeState.isFar = isFar;
+        decodeState.hasDisplacement = hasDisplacement;
+        decodeState.segment = segmentOverride >= 0 ? segmentOverride : defaultSegment(operands, rm);
 
+        decodeState.operands = operands;
         decodeState.reg = reg;
-        decodeState.rm = rmAddr;
+        decodeState.rm = rm;
+        decodeState.displacement = displacement;
         decodeState.immediate = immediate;
+        decodeState.length = p - address;
+    }
+
+    private static int readS8(ByteBuffer memory, int address) {
+        return (byte) readU8(memory, address);
     }
 
-    private static int readS8(InputStream in) throws IOException {
-        return (byte) readU8(in);
+    private static int readS16(ByteBuffer memory, int address) {
+        return (short) readU16(memory, address);
     }
 
-    private static int readS16(InputStream in) throws IOException {
-        return (short) readU16(in);
+    private static boolean isPrefix(Opcode opcode) {
+        return opcode == Opcode.SEGMENT || opcode == Opcode.REP || opcode == Opcode.LOCK;
     }
 
-    private static int readU8(InputStream in) throws IOException {
-        int b = in.read();
-        if (b < 0) {
-            throw new EOFException();
+    private static int defaultSegment(int operands, int rm) {
+        if ((operands & DecodeState.RM_MEMORY) != 0
+                && (rm == EffectiveAddress.BP_SI.ordinal() || rm == EffectiveAddress.BP_DI.ordinal() || rm == EffectiveAddress.BP.ordinal())) {
+            return DecodeState.SS;
         }
-        return b;
+        return DecodeState.DS;
+    }
+
+    private static int readU8(ByteBuffer memory, int address) {
+        return memory.get(address & ADDRESS_MASK) & 0xFF;
     }
 
-    private static int readU16(InputStream in) throws IOException {
-        return readU8(in) | (readU8(in) << 8);
+    private static int readU16(ByteBuffer memory, int address) {
+        return readU8(memory, address) | (readU8(memory, address + 1) << 8);
     }
 
     private record OpcodeMatcher(
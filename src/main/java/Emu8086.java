@@ -1,42 +1,513 @@
-import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class Emu8086 {
-    private Decoder decoder;
+    static final int MEMORY_SIZE = 1024 * 1024;
+    static final int ADDRESS_MASK = MEMORY_SIZE - 1;
+    private static final int SEGMENT_REGISTER_BASE = 8;
+    private static final byte[] ZERO_PAGE = new byte[DecodeCache.PAGE_SIZE];
+
+    private final Decoder decoder;
+    private DecodeCache decodeCache;
 
     private DecodeState decodeState;
-    private ByteBuffer registerFile;
-    private int flags;
+    int[] registers;
+    int dirtyRegisters;
+    // Segment register << 4, indexed by DecodeState.ES/CS/SS/DS and updated whenever a segment register is written
+    final int[] segmentBases = new int[4];
+    // Flags as of the last materialization, plus the pending ALU result; read by the recorder as they are
+    int flags;
+    int lazyKind;
+    int lazyOp1;
+    int lazyOp2;
+    int lazyResult;
+    boolean lazyIsWide;
     private ByteBuffer memory;
+    int ip;
+    private int programEnd;
+    private boolean halted;
+    long instructions;
+    private Snapshot baseline;
+    private int[] baselineGenerations;
+    // Snapshot pages a fork has not copied into memory yet, null when there are none left
+    private byte[][] sharedPages;
+    private int sharedCount;
+    private Tracer tracer;
+    private ClockModel clockModel;
+    private Profiler profiler;
+    private Recorder recorder;
+    private boolean instrumented;
+    // Only set while a debugger watches memory
+    Watchpoints watchpoints;
 
     public Emu8086() throws IOException {
-        try (var s = Emu8086.class.getResourceAsStream("8086.txt")) {
-            decoder = Decoder.decoder(s);
+        this(Decoder.shared());
+    }
+
+    public Emu8086(Decoder decoder) {
+        this.decoder = decoder;
+        registers = new int[12];
+        memory = ByteBuffer.allocate(MEMORY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        decodeCache = new DecodeCache(decoder, memory.capacity());
+        baseline = Snapshot.EMPTY;
+        baselineGenerations = new int[memory.capacity() >> DecodeCache.PAGE_SHIFT];
+    }
+
+    /**
+     * Creates a CPU on existing memory contents. Every page counts as changed since the last snapshot, so the first
+     * snapshot copies the initial contents and restoring rewrites them.
+     */
+    public Emu8086(Decoder decoder, ByteBuffer memory) {
+        if (memory.capacity() != MEMORY_SIZE) {
+            throw new IllegalArgumentException("Memory must be " + MEMORY_SIZE + " bytes: " + memory.capacity());
+        }
+        this.decoder = decoder;
+        registers = new int[12];
+        this.memory = memory.order(ByteOrder.LITTLE_ENDIAN);
+        decodeCache = new DecodeCache(decoder, memory.capacity());
+        baseline = Snapshot.EMPTY;
+        baselineGenerations = new int[memory.capacity() >> DecodeCache.PAGE_SHIFT];
+        Arrays.fill(baselineGenerations, -1);
+    }
+
+    /**
+     * Creates a CPU whose memory is a mapped image file. READ_WRITE mappings write guest memory through to the file,
+     * which is grown to 1MB if needed. PRIVATE mappings copy pages on write and never modify the file, so any number of
+     * CPUs can share one pristine image. A PRIVATE mapping needs a channel open for writing, so an image the process
+     * cannot write is read into a heap buffer instead.
+     */
+    public static Emu8086 map(Decoder decoder, Path image, FileChannel.MapMode mode) throws IOException {
+        boolean writable = mode == FileChannel.MapMode.READ_WRITE;
+        if (!writable && mode != FileChannel.MapMode.PRIVATE) {
+            throw new IllegalArgumentException("Unsupported map mode: " + mode);
+        }
+        if (!writable && !Files.isWritable(image)) {
+            ByteBuffer memory = MemoryDiff.read(image, ByteBuffer.allocate(MEMORY_SIZE));
+            if (memory.limit() < MEMORY_SIZE) {
+                throw new IOException("Memory image must be " + MEMORY_SIZE + " bytes: " + image);
+            }
+            return new Emu8086(decoder, memory);
+        }
+        // Private mappings also require a channel that is open for writing
+        try (FileChannel channel = writable
+                ? FileChannel.open(image, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE)
+                : FileChannel.open(image, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (!writable && channel.size() < MEMORY_SIZE) {
+                throw new IOException("Memory image must be " + MEMORY_SIZE + " bytes: " + image);
+            }
+            return new Emu8086(decoder, channel.map(mode, 0, MEMORY_SIZE));
+        }
+    }
+
+    public void load(Path program) throws IOException {
+        try (FileChannel channel = FileChannel.open(program, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > memory.capacity()) {
+                throw new IOException("Program does not fit in memory: " + size + " bytes");
+            }
+            load(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+    }
+
+    public void load(ByteBuffer image) throws IOException {
+        int size = image.remaining();
+        if (size > memory.capacity()) {
+            throw new IOException("Program does not fit in memory: " + size + " bytes");
+        }
+        unshare(0, size);
+        memory.put(0, image, image.position(), size);
+        decodeCache.invalidate(0, size);
+        ip = 0;
+        programEnd = size;
+        halted = false;
+    }
+
+    public boolean isRunning() {
+        return !halted && fetchAddress() < programEnd;
+    }
+
+    public void run() throws IOException {
+        run(Long.MAX_VALUE);
+    }
+
+    /**
+     * Runs until the program ends or the instruction count reaches {@code maxInstructions}.
+     */
+    public void run(long maxInstructions) throws IOException {
+        while (isRunning() && instructions < maxInstructions) {
+            step();
+        }
+    }
+
+    public void runThreaded() throws IOException {
+        runThreaded(Long.MAX_VALUE);
+    }
+
+    public void runThreaded(long maxInstructions) throws IOException {
+        while (isRunning() && instructions < maxInstructions) {
+            stepThreaded();
+        }
+    }
+
+    public void reset() {
+        reset(Snapshot.EMPTY);
+    }
+
+    /**
+     * Restores a snapshot and clears the instruction count and decode cache statistics.
+     */
+    public void reset(Snapshot snapshot) {
+        restore(snapshot);
+        decodeCache.resetStatistics();
+        instructions = 0;
+    }
+
+    /**
+     * Captures the machine state. Pages written since the last snapshot or restore are copied eagerly, so the cost
+     * grows with the number of dirty pages; unchanged pages are shared with the previous snapshot.
+     */
+    public Snapshot snapshot() {
+        byte[][] pages = new byte[baselineGenerations.length][];
+        for (int page = 0; page < pages.length; page++) {
+            int generation = decodeCache.generation(page << DecodeCache.PAGE_SHIFT);
+            if (generation == baselineGenerations[page]) {
+                pages[page] = baseline.page(page);
+            } else {
+                pages[page] = copyPage(page);
+                baselineGenerations[page] = generation;
+            }
+        }
+        Snapshot snapshot = new Snapshot(registers.clone(), getFlags(), ip, programEnd, halted, pages);
+        baseline = snapshot;
+        return snapshot;
+    }
+
+    /**
+     * Returns the machine to a snapshot. Only pages that differ from it are copied back.
+     */
+    public void restore(Snapshot snapshot) {
+        for (int page = 0; page < baselineGenerations.length; page++) {
+            byte[] contents = snapshot.page(page);
+            if (isBaselinePage(page, contents)) {
+                continue;
+            }
+            int address = page << DecodeCache.PAGE_SHIFT;
+            memory.put(address, contents != null ? contents : ZERO_PAGE);
+            if (sharedPages != null && sharedPages[page] != null) {
+                // Overwritten whole, so the shared page is never copied
+                unshared(page);
+            }
+            decodeCache.invalidate(address);
+            baselineGenerations[page] = decodeCache.generation(address);
         }
-        decodeState = new DecodeState();
-        registerFile = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
-        memory = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+        baseline = snapshot;
+        restoreState(snapshot);
     }
 
-    private void decode(InputStream in) throws IOException {
-        decoder.decode(decodeState, in);
+    private void restoreState(Snapshot snapshot) {
+        System.arraycopy(snapshot.registers, 0, registers, 0, registers.length);
+        for (int segment = 0; segment < segmentBases.length; segment++) {
+            segmentBases[segment] = registers[SEGMENT_REGISTER_BASE + segment] << 4;
+        }
+        dirtyRegisters = 0;
+        flags = snapshot.flags;
+        lazyKind = Alu.NONE;
+        ip = snapshot.ip;
+        programEnd = snapshot.programEnd;
+        halted = snapshot.halted;
+    }
+
+    /**
+     * Lists the memory ranges that differ from a snapshot. Pages that were not written since they were last
+     * synchronized with the same snapshot contents are skipped without comparing them.
+     */
+    public List<MemoryDiff.Range> diff(Snapshot snapshot) {
+        List<MemoryDiff.Range> ranges = new ArrayList<>();
+        for (int page = 0; page < baselineGenerations.length; page++) {
+            byte[] contents = snapshot.page(page);
+            if (isBaselinePage(page, contents)) {
+                continue;
+            }
+            unshare(page << DecodeCache.PAGE_SHIFT, DecodeCache.PAGE_SIZE);
+            MemoryDiff.compare(ranges, ByteBuffer.wrap(contents != null ? contents : ZERO_PAGE), 0,
+                    memory, page << DecodeCache.PAGE_SHIFT, DecodeCache.PAGE_SIZE);
+        }
+        return ranges;
+    }
 
+    private boolean isBaselinePage(int page, byte[] contents) {
+        return decodeCache.generation(page << DecodeCache.PAGE_SHIFT) == baselineGenerations[page]
+                && baseline.page(page) == contents;
+    }
+
+    public void dump(Path file) throws IOException {
+        unshare(0, MEMORY_SIZE);
+        MemoryDiff.dump(memory, file);
+    }
+
+    /**
+     * Creates a new CPU in the state of a snapshot without copying its memory. The CPU shares the snapshot's page
+     * arrays and copies a page into its own memory the first time it reads, writes or decodes from it. Until a store
+     * bumps its write generation, a page also stays shared with the snapshots taken of the fork.
+     */
+    public static Emu8086 fork(Decoder decoder, Snapshot snapshot) {
+        Emu8086 cpu = new Emu8086(decoder);
+        int pages = cpu.baselineGenerations.length;
+        byte[][] shared = Arrays.copyOf(snapshot.pages, pages);
+        int count = 0;
+        for (byte[] contents : shared) {
+            if (contents != null) {
+                count++;
+            }
+        }
+        if (count > 0) {
+            cpu.sharedPages = shared;
+            cpu.sharedCount = count;
+            cpu.decodeCache.setFork(cpu);
+        }
+        cpu.baseline = snapshot;
+        cpu.restoreState(snapshot);
+        return cpu;
+    }
+
+    /**
+     * Copies the pages of {@code [address, address + length)} that this CPU still shares with the snapshot it was
+     * forked from into memory. Anything that accesses the memory buffer other than through {@link #getMemory},
+     * {@link #setMemory} and the decode cache has to call this first.
+     */
+    void unshare(int address, int length) {
+        if (sharedPages == null || length <= 0) {
+            return;
+        }
+        int first = (address & ADDRESS_MASK) >> DecodeCache.PAGE_SHIFT;
+        int count = Math.min((((address & (DecodeCache.PAGE_SIZE - 1)) + length - 1) >> DecodeCache.PAGE_SHIFT) + 1,
+                sharedPages.length);
+        for (int n = 0; n < count && sharedPages != null; n++) {
+            int page = (first + n) & (sharedPages.length - 1);
+            byte[] contents = sharedPages[page];
+            if (contents != null) {
+                memory.put(page << DecodeCache.PAGE_SHIFT, contents);
+                unshared(page);
+            }
+        }
+    }
+
+    private void unshared(int page) {
+        sharedPages[page] = null;
+        if (--sharedCount == 0) {
+            sharedPages = null;
+            decodeCache.setFork(null);
+        }
+    }
+
+    /**
+     * The number of non-zero pages a fork still shares with its snapshot.
+     */
+    int sharedPages() {
+        return sharedCount;
+    }
+
+    private byte[] copyPage(int page) {
+        byte[] contents = new byte[DecodeCache.PAGE_SIZE];
+        memory.get(page << DecodeCache.PAGE_SHIFT, contents);
+        return Arrays.equals(contents, ZERO_PAGE) ? null : contents;
+    }
+
+    public long instructions() {
+        return instructions;
+    }
+
+    public void setTracer(Tracer tracer) {
+        this.tracer = tracer;
+        if (tracer != null) {
+            tracer.track(registers);
+        }
+        updateInstrumented();
+    }
+
+    public void setClockModel(ClockModel clockModel) {
+        this.clockModel = clockModel;
+        updateInstrumented();
+    }
+
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+        updateInstrumented();
+    }
+
+    /**
+     * Starts recording with a checkpoint of the current state, or stops recording when {@code recorder} is null.
+     */
+    public void setRecorder(Recorder recorder) {
+        this.recorder = recorder;
+        if (recorder != null) {
+            recorder.start(this);
+        }
+        updateInstrumented();
+    }
+
+    private void updateInstrumented() {
+        instrumented = tracer != null || clockModel != null || profiler != null || recorder != null;
+    }
+
+    public void runJit(Jit jit) throws IOException {
+        runJit(jit, Long.MAX_VALUE);
+    }
+
+    /**
+     * Runs with compiled blocks until the program ends or the instruction count reaches {@code maxInstructions}. The
+     * limit is checked between blocks, so a run can overshoot it by the length of one block.
+     */
+    public void runJit(Jit jit, long maxInstructions) throws IOException {
+        CompiledBlock previous = null;
+        while (isRunning() && instructions < maxInstructions) {
+            // Compiled blocks do not report individual instructions, so instrumentation keeps execution interpreted
+            CompiledBlock block = instrumented ? null : jit.block(this, previous, fetchAddress());
+            if (block != null) {
+                ip = block.execute(this);
+                instructions += block.instructions.length;
+            } else {
+                interpretBlock();
+            }
+            previous = block;
+        }
+    }
+
+    /**
+     * Called by a compiled block that returns before its last instruction, which runJit would otherwise count.
+     */
+    void exitBlock(int unexecuted) {
+        instructions -= unexecuted;
+    }
+
+    private void interpretBlock() throws IOException {
+        while (isRunning()) {
+            DecodeState instruction = decodeCache.get(memory, fetchAddress());
+            stepThreaded();
+            if (Jit.isTerminator(instruction.opcode) || instruction.isFused) {
+                break;
+            }
+        }
+    }
+
+    DecodeCache decodeCache() {
+        return decodeCache;
+    }
+
+    /**
+     * The memory buffer. On a fork, pages that were never accessed still read as zero until {@link #unshare}.
+     */
+    ByteBuffer memory() {
+        return memory;
+    }
+
+    int programEnd() {
+        return programEnd;
+    }
+
+    int fetchAddress() {
+        return (segmentBases[DecodeState.CS] + ip) & ADDRESS_MASK;
+    }
+
+    public void step() throws IOException {
+        int address = fetchAddress();
+        decodeState = decodeCache.get(memory, address);
+        ip = (ip + decodeState.length) & 0xFFFF;
+        instructions++;
+        if (instrumented) {
+            observe(address, decodeState, Emu8086::interpret);
+        } else {
+            execute();
+        }
+    }
+
+    public void stepThreaded() throws IOException {
+        int address = fetchAddress();
+        DecodeState instruction = decodeCache.get(memory, address);
+        ip = (ip + instruction.length) & 0xFFFF;
+        instructions++;
+        Handler handler = instruction.fastHandler;
+        if (handler == null) {
+            if (instruction.handler == null) {
+                instruction.handler = ThreadedCode.bind(instruction);
+            }
+            handler = ThreadedCode.fast(this, address, instruction);
+            instruction.fastHandler = handler;
+        }
+        if (instrumented) {
+            observe(address, instruction, instruction.handler);
+        } else {
+            handler.execute(this, instruction);
+        }
+    }
+
+    private void observe(int address, DecodeState instruction, Handler handler) {
+        int before = clockModel != null ? ClockModel.before(this, instruction) : 0;
+        handler.execute(this, instruction);
+        int clocks = clockModel != null ? clockModel.count(this, address, instruction, before) : -1;
+        if (profiler != null) {
+            profiler.count(address, instruction);
+        }
+        if (recorder != null) {
+            recorder.record(this);
+        }
+        if (tracer != null) {
+            tracer.record(this, address, instruction, clocks);
+        }
+        dirtyRegisters = 0;
+    }
+
+    void interpret(DecodeState instruction) {
+        decodeState = instruction;
+        execute();
+    }
+
+    private void execute() {
         switch (decodeState.opcode) {
             case MOV -> mov();
-            case PUSH -> push();
-            case POP -> pop();
-            case ADD -> add();
-            case SUB -> sub();
-            case CMP -> cmp();
+            case ADD -> arithmetic(Alu.ADD, true);
+            case ADC -> arithmetic(Alu.ADC, true);
+            case SUB -> arithmetic(Alu.SUB, true);
+            case SBB -> arithmetic(Alu.SBB, true);
+            case CMP -> arithmetic(Alu.SUB, false);
+            case AND -> arithmetic(Alu.AND, true);
+            case OR -> arithmetic(Alu.OR, true);
+            case XOR -> arithmetic(Alu.XOR, true);
+            case TEST -> arithmetic(Alu.AND, false);
+            case INC -> unary(Alu.INC);
+            case DEC -> unary(Alu.DEC);
+            case NEG -> unary(Alu.NEG);
+            case NOT -> unary(Alu.NOT);
             case JE, JNE,  JL,  JNL, JLE, JNLE, JB, JNB, JBE, JNBE, JP, JNP, JO, JNO, JS, JNS, LOOP, LOOPZ, LOOPNZ, JCXZ -> {
                 jump();
             }
-            default -> System.out.printf("%s not implemented%n", decodeState.opcode);
+            case JMP -> {
+                if ((decodeState.operands & DecodeState.RM_OPERAND) == 0 && !decodeState.isFar) {
+                    jump();
+                } else {
+                    System.err.printf("%s not implemented%n", decodeState.opcode);
+                }
+            }
+            case MOVS, CMPS, SCAS, LODS, STDS -> StringInstructions.execute(this, decodeState);
+            case CLC -> clearFlag(Flag.CARRY);
+            case STC -> setFlag(Flag.CARRY);
+            case CMC -> setFlag(Flag.CARRY, !getFlag(Flag.CARRY));
+            case CLD -> clearFlag(Flag.DIRECTION);
+            case STD -> setFlag(Flag.DIRECTION);
+            case CLI -> clearFlag(Flag.INTERRUPT_ENABLE);
+            case STI -> setFlag(Flag.INTERRUPT_ENABLE);
+            case HLT -> halted = true;
+            default -> System.err.printf("%s not implemented%n", decodeState.opcode);
         }
     }
 
@@ -49,205 +520,391 @@ public class Emu8086 {
     }
 
     private void setFlag(Flag flag) {
-        flags |= flag.setTestMask;
+        flags = getFlags() | flag.setTestMask;
     }
 
     private void clearFlag(Flag flag) {
-        flags &= flag.clearMask;
+        flags = getFlags() & flag.clearMask;
+    }
+
+    boolean getFlag(Flag flag) {
+        return (getFlags() & flag.setTestMask) != 0;
+    }
+
+    int getFlags() {
+        if (lazyKind != Alu.NONE) {
+            flags = (flags & ~Alu.defined(lazyKind)) | Alu.flags(lazyKind, lazyOp1, lazyOp2, lazyResult, lazyIsWide);
+            lazyKind = Alu.NONE;
+        }
+        return flags;
+    }
+
+    /**
+     * Restores flags and a pending ALU result exactly as recorded, without materializing either.
+     */
+    void setFlagState(int flags, int kind, int op1, int op2, int result, boolean isWide) {
+        this.flags = flags;
+        lazyKind = kind;
+        lazyOp1 = op1;
+        lazyOp2 = op2;
+        lazyResult = result;
+        lazyIsWide = isWide;
+    }
+
+    void setLazyFlags(int kind, int op1, int op2, int result, boolean isWide) {
+        if (lazyKind != Alu.NONE && (kind == Alu.INC || kind == Alu.DEC)) {
+            // The carry of the pending result survives INC and DEC
+            getFlags();
+        }
+        lazyKind = kind;
+        lazyOp1 = op1;
+        lazyOp2 = op2;
+        lazyResult = result;
+        lazyIsWide = isWide;
     }
 
-    private boolean getFlag(Flag flag) {
-        return (flags & flag.setTestMask) != 0;
+    int alu(int operation, int op1, int op2, boolean isWide) {
+        op2 &= isWide ? 0xFFFF : 0xFF;
+        int kind = operation;
+        int result;
+        switch (operation) {
+            case Alu.ADD -> result = op1 + op2;
+            case Alu.SUB -> result = op1 - op2;
+            case Alu.ADC -> {
+                kind = Alu.ADD;
+                result = op1 + op2 + carry();
+            }
+            case Alu.SBB -> {
+                kind = Alu.SUB;
+                result = op1 - op2 - carry();
+            }
+            case Alu.AND -> {
+                kind = Alu.LOGIC;
+                result = op1 & op2;
+            }
+            case Alu.OR -> {
+                kind = Alu.LOGIC;
+                result = op1 | op2;
+            }
+            case Alu.XOR -> {
+                kind = Alu.LOGIC;
+                result = op1 ^ op2;
+            }
+            default -> throw new IllegalArgumentException("Not a binary operation: " + operation);
+        }
+        setLazyFlags(kind, op1, op2, result, isWide);
+        return result;
     }
-    
-    private void cmp() {
-        printTwoOperand();
+
+    int unary(int operation, int value, boolean isWide) {
+        return switch (operation) {
+            case Alu.INC -> {
+                int result = value + 1;
+                setLazyFlags(Alu.INC, value, 1, result, isWide);
+                yield result;
+            }
+            case Alu.DEC -> {
+                int result = value - 1;
+                setLazyFlags(Alu.DEC, value, 1, result, isWide);
+                yield result;
+            }
+            case Alu.NEG -> alu(Alu.SUB, 0, value, isWide);
+            case Alu.NOT -> ~value;
+            default -> throw new IllegalArgumentException("Not a unary operation: " + operation);
+        };
     }
 
-    private void sub() {
-        printTwoOperand();
+    private int carry() {
+        return (getFlags() >> Flag.CARRY.bitIndex) & 1;
     }
 
-    private void add() {
-        Register reg = decodeState.reg;
-        Address rm = decodeState.rm;
+    private void unary(int operation) {
+        if ((decodeState.operands & DecodeState.RM_OPERAND) == 0) {
+            setReg(unary(operation, getReg(), decodeState.isWide));
+        } else {
+            setRm(unary(operation, getRm(), decodeState.isWide));
+        }
+    }
 
-        ByteBuffer previousRegisterFile = ByteBuffer.allocate(registerFile.capacity()).order(registerFile.order());
-        previousRegisterFile.put(registerFile);
-        previousRegisterFile.clear();
-        registerFile.clear();
+    private void arithmetic(int operation, boolean writeResult) {
+        int operands = decodeState.operands;
 
-        Address target;
+        boolean isToReg;
         int op1;
         int op2;
-        if (rm == null) {
-            op1 = get(reg);
+        if ((operands & DecodeState.RM_OPERAND) == 0) {
+            op1 = getReg();
             op2 = decodeState.immediate;
-            target = reg;
-        } else if (reg == null) {
-            op1 = get(rm);
+            isToReg = true;
+        } else if ((operands & DecodeState.REG_REGISTER) == 0) {
+            op1 = getRm();
             op2 = decodeState.immediate;
-            target = rm;
+            isToReg = false;
         } else if (decodeState.isToReg) {
-            op1 = get(reg);
-            op2 = get(rm);
-            target = reg;
+            op1 = getReg();
+            op2 = getRm();
+            isToReg = true;
         } else {
-            op1 = get(reg);
-            op2 = get(rm);
-            target = rm;
+            op1 = getRm();
+            op2 = getReg();
+            isToReg = false;
         }
 
-        int result = op1 + op2;
+        int result = alu(operation, op1, op2, decodeState.isWide);
 
-        setFlag(Flag.CARRY, decodeState.isWide ? ((result & 0x100) != 0) : ((result & 0x10) != 0));
-        setFlag(Flag.SIGN, decodeState.isWide ? ((result & 0x80) != 0) : ((result & 0x8) != 0));
-        setFlag(Flag.ZERO, result == 0);
-        setFlag(Flag.PARITY, ParityTable.getParity(result));
+        if (writeResult) {
+            if (isToReg) {
+                setReg(result);
+            } else {
+                setRm(result);
+            }
+        }
+    }
 
-        set(target, result);
+    private void mov() {
+        int operands = decodeState.operands;
 
-        printTwoOperand();
-        printRegisterChange(previousRegisterFile);
+        if ((operands & DecodeState.RM_OPERAND) == 0) {
+            setReg(decodeState.immediate);
+        } else if ((operands & DecodeState.REG_REGISTER) == 0) {
+            setRm(decodeState.immediate);
+        } else if (decodeState.isToReg) {
+            setReg(getRm());
+        } else {
+            setRm(getReg());
+        }
     }
 
-    private void pop() {
-        printOneOperand();
+    private void jump() {
+        if (condition(decodeState.opcode)) {
+            jumpRelative(decodeState.immediate);
+        }
     }
 
-    private void push() {
-        printOneOperand();
+    private boolean condition(Opcode opcode) {
+        return switch (opcode) {
+            case JE -> getFlag(Flag.ZERO);
+            case JNE -> !getFlag(Flag.ZERO);
+            case JL -> getFlag(Flag.SIGN) != getFlag(Flag.OVERFLOW);
+            case JNL -> getFlag(Flag.SIGN) == getFlag(Flag.OVERFLOW);
+            case JLE -> getFlag(Flag.ZERO) || getFlag(Flag.SIGN) != getFlag(Flag.OVERFLOW);
+            case JNLE -> !getFlag(Flag.ZERO) && getFlag(Flag.SIGN) == getFlag(Flag.OVERFLOW);
+            case JB -> getFlag(Flag.CARRY);
+            case JNB -> !getFlag(Flag.CARRY);
+            case JBE -> getFlag(Flag.CARRY) || getFlag(Flag.ZERO);
+            case JNBE -> !getFlag(Flag.CARRY) && !getFlag(Flag.ZERO);
+            case JP -> getFlag(Flag.PARITY);
+            case JNP -> !getFlag(Flag.PARITY);
+            case JO -> getFlag(Flag.OVERFLOW);
+            case JNO -> !getFlag(Flag.OVERFLOW);
+            case JS -> getFlag(Flag.SIGN);
+            case JNS -> !getFlag(Flag.SIGN);
+            case LOOP -> decrementCX() != 0;
+            case LOOPZ -> decrementCX() != 0 && getFlag(Flag.ZERO);
+            case LOOPNZ -> decrementCX() != 0 && !getFlag(Flag.ZERO);
+            case JCXZ -> get(Register.CX) == 0;
+            default -> true;
+        };
     }
 
-    private void mov() {
-        Register reg = decodeState.reg;
-        Address rm = decodeState.rm;
-
-        ByteBuffer previousRegisterFile = ByteBuffer.allocate(registerFile.capacity()).order(registerFile.order());
-        previousRegisterFile.put(registerFile);
-        previousRegisterFile.clear();
-        registerFile.clear();
-
-        if (rm == null) {
-            set(reg, decodeState.immediate);
-        } else if (reg == null) {
-            set(rm, decodeState.immediate);
-        } else if (decodeState.isToReg) {
-            set(reg, get(rm));
-        } else {
-            set(rm, get(reg));
-        }
+    // Branch conditions following a CMP or SUB, computed from the pending lazy flag operands
+    boolean compareEqual() {
+        return (lazyResult & (lazyIsWide ? 0xFFFF : 0xFF)) == 0;
+    }
 
-        printTwoOperand();
-        printRegisterChange(previousRegisterFile);
+    boolean compareBelow() {
+        return lazyOp1 < lazyOp2;
     }
 
-    private void jump() {
-        System.out.printf("%s %s%n", decodeState.opcode, decodeState.immediate);
+    boolean compareLess() {
+        return lazyIsWide ? (short) lazyOp1 < (short) lazyOp2 : (byte) lazyOp1 < (byte) lazyOp2;
     }
 
-    private int get(Address address) {
-        if (address instanceof Register r) {
-            return get(r);
-        } else {
-            return get(((MemoryAddress) address));
+    boolean compareSign() {
+        return (lazyResult & (lazyIsWide ? 0x8000 : 0x80)) != 0;
+    }
+
+    void fusedBranch(int length, int displacement, boolean taken) {
+        instructions++;
+        ip = (ip + length) & 0xFFFF;
+        if (taken) {
+            jumpRelative(displacement);
         }
     }
 
-    private int get(Register register) {
-        return get(register, registerFile);
+    void jumpRelative(int displacement) {
+        ip = (ip + displacement) & 0xFFFF;
     }
 
-    private static int get(Register register, ByteBuffer registerFile) {
-        int o = register.offset;
-        if (o < 0) {
-            return registerFile.get(-o - 1) & 0xFF;
-        } else {
-            return registerFile.getChar(o);
-        }
+    void setWatchpoints(Watchpoints watchpoints) {
+        this.watchpoints = watchpoints;
+    }
+
+    void setFlags(int value) {
+        flags = value;
+        lazyKind = Alu.NONE;
+    }
+
+    void halt() {
+        halted = true;
+    }
+
+    boolean isHalted() {
+        return halted;
+    }
+
+    int decrementCX() {
+        int cx = (get(Register.CX) - 1) & 0xFFFF;
+        set(Register.CX, cx);
+        return cx;
+    }
+
+    private int getReg() {
+        return getRegister(decodeState.reg, decodeState.isWide);
+    }
+
+    private void setReg(int value) {
+        setRegister(decodeState.reg, decodeState.isWide, value);
     }
 
-    private int get(MemoryAddress address) {
-        if (decodeState.isWide) {
-            return memory.getChar(effectiveAddress(address));
+    private int getRm() {
+        if ((decodeState.operands & DecodeState.RM_MEMORY) != 0) {
+            return readWatched(effectiveAddress(decodeState), decodeState.isWide);
         } else {
-            return memory.get(effectiveAddress(address)) & 0xFF;
+            return getRegister(decodeState.rm, decodeState.isWide);
         }
     }
 
-    private void set(Address address, int value) {
-        if (address instanceof Register r) {
-            set(r, value);
+    private void setRm(int value) {
+        if ((decodeState.operands & DecodeState.RM_MEMORY) != 0) {
+            writeWatched(effectiveAddress(decodeState), decodeState.isWide, value);
         } else {
-            set(((MemoryAddress) address), value);
+            setRegister(decodeState.rm, decodeState.isWide, value);
         }
     }
 
+    int get(Register register) {
+        return getRegister(register.number, register.isWide);
+    }
+
     private void set(Register register, int value) {
-        int o = register.offset;
-        if (o < 0) {
-            registerFile.put(-o - 1, (byte) value);
+        setRegister(register.number, register.isWide, value);
+    }
+
+    int getRegister(int number, boolean isWide) {
+        if (isWide) {
+            return registers[number];
         } else {
-            registerFile.putChar(o, (char) value);
+            return (registers[number & 3] >> ((number & 4) << 1)) & 0xFF;
         }
     }
 
-    private void set(MemoryAddress address, int value) {
-        if (decodeState.isWide) {
-            memory.putChar(effectiveAddress(address), (char)value);
+    void setRegister(int number, boolean isWide, int value) {
+        if (isWide) {
+            registers[number] = value & 0xFFFF;
+            dirtyRegisters |= 1 << number;
+            if (number >= SEGMENT_REGISTER_BASE) {
+                segmentBases[number - SEGMENT_REGISTER_BASE] = (value & 0xFFFF) << 4;
+            }
         } else {
-            memory.put(effectiveAddress(address), (byte)value);
+            int slot = number & 3;
+            int shift = (number & 4) << 1;
+            registers[slot] = (registers[slot] & ~(0xFF << shift)) | ((value & 0xFF) << shift);
+            dirtyRegisters |= 1 << slot;
         }
     }
 
-    private int effectiveAddress(MemoryAddress address) {
-        int base = switch (address.mode()) {
-            case BX_SI -> get(Register.BX) + get(Register.SI);
-            case BX_DI -> get(Register.BX) + get(Register.DI);
-            case BP_SI -> get(Register.BP) + get(Register.SI);
-            case BP_DI -> get(Register.BP) + get(Register.SI);
-            case SI -> get(Register.SI);
-            case DI -> get(Register.DI);
-            case BP -> get(Register.BP);
-            case BX -> get(Register.BX);
-            case DIRECT -> 0;
-        };
-        int ea = base + address.displacement();
-        return ea;
-    }
-    private void printOneOperand() {
-        Address op;
-        if (decodeState.reg == null) {
-            op = decodeState.rm;
-        } else {
-            op = decodeState.reg;
+    /**
+     * Reads memory through the debug path: the switch interpreter and string instructions run element by element
+     * check watchpoints here, while threaded handlers, compiled blocks and bulk string operations use the unchecked
+     * {@link #getMemory}. The debugger only steps the switch interpreter.
+     */
+    int readWatched(int ea, boolean isWide) {
+        if (watchpoints != null) {
+            watchpoints.check(ea, isWide ? 2 : 1, Watchpoints.READ);
         }
+        return getMemory(ea, isWide);
+    }
 
-        System.out.printf("%s %s%n", decodeState.opcode, op);
+    void writeWatched(int ea, boolean isWide, int value) {
+        if (watchpoints != null) {
+            watchpoints.check(ea, isWide ? 2 : 1, Watchpoints.WRITE);
+        }
+        setMemory(ea, isWide, value);
     }
 
-    private void printTwoOperand() {
-        Address rm = decodeState.rm;
-        Address reg = decodeState.reg;
+    int getMemory(int ea, boolean isWide) {
+        if (sharedPages != null) {
+            unshare(ea, isWide ? 2 : 1);
+        }
+        if (isWide) {
+            if (ea == ADDRESS_MASK) {
+                return (memory.get(ea) & 0xFF) | ((memory.get(0) & 0xFF) << 8);
+            }
+            return memory.getChar(ea);
+        } else {
+            return memory.get(ea) & 0xFF;
+        }
+    }
 
-        if (rm == null) {
-            System.out.printf("%s %s, %d%n", decodeState.opcode, reg, decodeState.immediate);
-        } else if (reg == null) {
-            System.out.printf("%s %s, %s%d%n", decodeState.opcode, rm, ((rm instanceof MemoryAddress) ? (decodeState.isWide ? "word " : "byte ") : ""), decodeState.immediate);
-        } else if (decodeState.isToReg) {
-            System.out.printf("%s %s, %s%n", decodeState.opcode, reg, rm);
+    void setMemory(int ea, boolean isWide, int value) {
+        if (sharedPages != null) {
+            unshare(ea, isWide ? 2 : 1);
+        }
+        if (isWide) {
+            if (ea == ADDRESS_MASK) {
+                memory.put(ea, (byte) value);
+                memory.put(0, (byte) (value >> 8));
+            } else {
+                memory.putChar(ea, (char) value);
+            }
+            decodeCache.invalidate(ea, 2);
         } else {
-            System.out.printf("%s %s, %s%n", decodeState.opcode, rm, reg);
+            memory.put(ea, (byte)value);
+            decodeCache.invalidate(ea);
+        }
+        if (recorder != null) {
+            recorder.written(ea, isWide ? 2 : 1);
         }
     }
 
+    /**
+     * Accounts for memory written directly to the buffer instead of through {@link #setMemory}.
+     */
+    void written(int address, int length) {
+        decodeCache.invalidate(address, length);
+        if (recorder != null) {
+            recorder.written(address, length);
+        }
+    }
+
+    /**
+     * Returns the 20-bit physical address of the memory operand of an instruction.
+     */
+    int effectiveAddress(DecodeState instruction) {
+        int base = switch (instruction.rm) {
+            case 0 -> get(Register.BX) + get(Register.SI);
+            case 1 -> get(Register.BX) + get(Register.DI);
+            case 2 -> get(Register.BP) + get(Register.SI);
+            case 3 -> get(Register.BP) + get(Register.DI);
+            case 4 -> get(Register.SI);
+            case 5 -> get(Register.DI);
+            case 6 -> get(Register.BP);
+            case 7 -> get(Register.BX);
+            default -> 0;
+        };
+        int offset = (base + instruction.displacement) & 0xFFFF;
+        return (segmentBases[instruction.segment] + offset) & ADDRESS_MASK;
+    }
+
     private void printRegisterFile() {
         for (Register register : Register.values()) {
-            if (register.offset < 0) {
+            if (!register.isWide) {
                 continue;
             }
             System.out.printf("%s: 0x%04x%n", register, get(register));
         }
+        System.out.printf("%s: 0x%04x%n", "IP", ip);
         StringBuilder flags = new StringBuilder();
         for (Flag f : Flag.values()) {
             if (getFlag(f)) {
@@ -257,29 +914,212 @@ public class Emu8086 {
         System.out.printf("%s: %s%n", "flags", flags);
     }
 
-    private void printRegisterChange(ByteBuffer previousRegisterFile) {
-        for (Register register : Register.values()) {
-            if (register.offset < 0) {
-                continue;
-            }
+    private void printDecodeCacheStatistics() {
+        System.out.printf("decode cache: %d hits, %d misses%n", decodeCache.hits(), decodeCache.misses());
+    }
 
-            int previous = get(register, previousRegisterFile);
-            int current = get(register);
-            if (previous != current) {
-                System.out.printf("%s: 0x%04x -> 0x%04x%n", register, previous, current);
-            }
+    private boolean hasSameState(Emu8086 other) {
+        return hasSameState(other, -1);
+    }
+
+    private boolean hasSameState(Emu8086 other, int flagMask) {
+        unshare(0, MEMORY_SIZE);
+        other.unshare(0, MEMORY_SIZE);
+        return ip == other.ip
+                && Arrays.equals(registers, other.registers)
+                && (getFlags() & flagMask) == (other.getFlags() & flagMask)
+                && memory.equals(other.memory);
+    }
+
+    private static void runBatch(Path source, String mode, int threads, Path dump, Path expect, Path image,
+                                 long maxInstructions) throws IOException {
+        List<Path> programs = BatchRunner.programs(source);
+        long start = System.nanoTime();
+        BatchRunner.Result[] results;
+        try {
+            BatchRunner runner = new BatchRunner(Decoder.shared(), mode, threads);
+            runner.setDumpDirectory(dump);
+            runner.setExpectDirectory(expect);
+            runner.setImage(image);
+            runner.setMaxInstructions(maxInstructions);
+            results = runner.run(programs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        long elapsed = System.nanoTime() - start;
+        BatchRunner.report(results, System.out);
+        long instructions = 0;
+        for (BatchRunner.Result result : results) {
+            instructions += result.instructions();
         }
+        System.out.printf("batch: %d programs, %d instructions in %d ms on %d threads%n",
+                results.length, instructions, elapsed / 1_000_000, threads);
     }
 
     public static void main(String[] args) throws IOException {
-        Emu8086 cpu = new Emu8086();
-        try (InputStream in = Files.newInputStream(Paths.get(args[0]))) {
-            while (true) {
-                cpu.decode(in);
+        String mode = "--switch";
+        TraceLevel traceLevel = null;
+        boolean clocks = false;
+        boolean profile = false;
+        boolean batch = false;
+        boolean serve = false;
+        Path dump = null;
+        Path expect = null;
+        Path image = null;
+        FileChannel.MapMode mapMode = null;
+        Path record = null;
+        int checkpointInterval = Recorder.DEFAULT_CHECKPOINT_INTERVAL;
+        long replay = -1;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long maxInstructions = EmulationServer.DEFAULT_MAX_INSTRUCTIONS;
+        int maxConnections = EmulationServer.DEFAULT_MAX_CONNECTIONS;
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals("--clocks")) {
+                clocks = true;
+            } else if (args[i].equals("--profile")) {
+                profile = true;
+            } else if (args[i].equals("--batch")) {
+                batch = true;
+            } else if (args[i].equals("--serve")) {
+                serve = true;
+            } else if (args[i].startsWith("--threads=")) {
+                threads = Integer.parseInt(args[i].substring("--threads=".length()));
+            } else if (args[i].startsWith("--max-instructions=")) {
+                maxInstructions = Long.parseLong(args[i].substring("--max-instructions=".length()));
+            } else if (args[i].startsWith("--max-connections=")) {
+                maxConnections = Integer.parseInt(args[i].substring("--max-connections=".length()));
+            } else if (args[i].startsWith("--dump=")) {
+                dump = Paths.get(args[i].substring("--dump=".length()));
+            } else if (args[i].startsWith("--map=")) {
+                image = Paths.get(args[i].substring("--map=".length()));
+                mapMode = FileChannel.MapMode.READ_WRITE;
+            } else if (args[i].startsWith("--map-private=")) {
+                image = Paths.get(args[i].substring("--map-private=".length()));
+                mapMode = FileChannel.MapMode.PRIVATE;
+            } else if (args[i].startsWith("--record=")) {
+                record = Paths.get(args[i].substring("--record=".length()));
+            } else if (args[i].startsWith("--checkpoint-interval=")) {
+                checkpointInterval = Integer.parseInt(args[i].substring("--checkpoint-interval=".length()));
+            } else if (args[i].startsWith("--replay=")) {
+                replay = Long.parseLong(args[i].substring("--replay=".length()));
+            } else if (args[i].startsWith("--expect=")) {
+                expect = Paths.get(args[i].substring("--expect=".length()));
+            } else if (args[i].startsWith("--trace=")) {
+                traceLevel = TraceLevel.valueOf(args[i].substring("--trace=".length()).toUpperCase());
+            } else {
+                mode = args[i];
             }
-        } catch (EOFException e) {
-            // done
+        }
+        if (traceLevel == null) {
+            traceLevel = mode.equals("--switch") ? TraceLevel.REGISTERS : TraceLevel.OFF;
+        }
+        Path program = Paths.get(args[args.length - 1]);
+
+        if (serve) {
+            EmulationServer server = new EmulationServer(Decoder.shared(), program, threads);
+            server.setMaxInstructions(maxInstructions);
+            server.setMaxConnections(maxConnections);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    server.close();
+                } catch (IOException e) {
+                    System.err.println("Could not remove " + program + ": " + e.getMessage());
+                }
+            }));
+            System.err.printf("serving on %s with %d cpus%n", program, threads);
+            server.serve();
+            return;
+        }
+
+        if (replay >= 0) {
+            try (Replay log = new Replay(Decoder.shared(), program)) {
+                log.seek(replay);
+                System.out.printf("replay: instruction %d of %d%n", log.position(), log.end());
+                log.cpu().printRegisterFile();
+            }
+            return;
+        }
+
+        if (batch) {
+            if (mapMode == FileChannel.MapMode.READ_WRITE) {
+                throw new IllegalArgumentException("Batch mode only supports --map-private");
+            }
+            runBatch(program, mode, threads, dump, expect, image, maxInstructions);
+            return;
+        }
+
+        Emu8086 cpu = image != null ? Emu8086.map(Decoder.shared(), image, mapMode) : new Emu8086();
+        cpu.load(program);
+        Tracer tracer = traceLevel == TraceLevel.OFF || mode.equals("--check") ? null : new Tracer(traceLevel, System.out);
+        cpu.setTracer(tracer);
+        ClockModel clockModel = clocks ? new ClockModel() : null;
+        cpu.setClockModel(clockModel);
+        Profiler profiler = profile ? new Profiler(cpu.memory.capacity()) : null;
+        cpu.setProfiler(profiler);
+        OutputStream log = record != null ? Files.newOutputStream(record) : null;
+        Recorder recorder = log != null ? new Recorder(log, checkpointInterval) : null;
+        cpu.setRecorder(recorder);
+        Jit jit = null;
+        switch (mode) {
+            case "--switch" -> cpu.run();
+            case "--threaded" -> cpu.runThreaded();
+            case "--jit" -> {
+                jit = new Jit(cpu.memory.capacity(), Jit.DEFAULT_HOT_THRESHOLD);
+                cpu.runJit(jit);
+            }
+            case "--check" -> {
+                Snapshot initial = cpu.snapshot();
+                Emu8086 threaded = Emu8086.fork(Decoder.shared(), initial);
+                while (cpu.isRunning()) {
+                    DecodeState instruction = threaded.decodeCache.get(threaded.memory, threaded.fetchAddress());
+                    threaded.stepThreaded();
+                    // The threaded interpreter does not keep dead flags up to date
+                    int flagMask = ~Alu.ARITHMETIC_FLAGS | instruction.liveFlags;
+                    // Fused pairs retire two instructions per step
+                    while (cpu.instructions < threaded.instructions && cpu.isRunning()) {
+                        cpu.step();
+                    }
+                    if (!cpu.hasSameState(threaded, flagMask)) {
+                        System.out.printf("threaded interpreter diverged after %d instructions%n", cpu.instructions);
+                        threaded.printRegisterFile();
+                        break;
+                    }
+                }
+
+                Emu8086 compiled = Emu8086.fork(Decoder.shared(), initial);
+                compiled.runJit(new Jit(compiled.memory.capacity(), 1));
+                if (!cpu.hasSameState(compiled)) {
+                    System.out.println("jit final state differs from the switch interpreter");
+                    compiled.printRegisterFile();
+                }
+            }
+            default -> throw new IllegalArgumentException("Unknown mode: " + mode);
+        }
+        if (tracer != null) {
+            tracer.close();
+        }
+        if (recorder != null) {
+            recorder.close();
+            log.close();
+        }
+        if (jit != null) {
+            System.out.printf("jit: %d blocks compiled, %d invalidated%n", jit.compiledBlocks(), jit.invalidatedBlocks());
+        }
+        if (clockModel != null) {
+            System.out.printf("clocks: %d%n", clockModel.total());
         }
         cpu.printRegisterFile();
+        cpu.printDecodeCacheStatistics();
+        if (profiler != null) {
+            profiler.report(System.out);
+        }
+        if (dump != null) {
+            cpu.dump(dump);
+        }
+        if (expect != null) {
+            ByteBuffer expected = MemoryDiff.read(expect, ByteBuffer.allocate(cpu.memory.capacity()));
+            System.out.println("memory: " + MemoryDiff.format(MemoryDiff.compare(expected, cpu.memory)));
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,339 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Long-lived emulation service on a Unix domain socket. Every connection is served on its own thread, while programs
+ * run on a fixed pool of warmed up CPUs that share one decoder. When all CPUs are busy a request waits for one and its
+ * connection is not read any further, which pushes back on the client. At most {@link #setMaxConnections} connections
+ * are open at once; further clients wait in the socket backlog. A program that has not ended after
+ * {@link #setMaxInstructions} instructions is stopped and answered with an error, so it cannot hold a CPU forever.
+ * Connections are served on virtual threads when the JDK has them.
+ * <p>
+ * A request is a line {@code RUN <length> [mode=switch|threaded|jit] [trace=<level>] [<register>=<value>]...
+ * [ip=<value>] [flags=<value>]} followed by {@code length} bytes of program image. The response is an optional
+ * {@code TRACE <length> [truncated]} line followed by that many bytes of trace output, and then a single {@code OK}
+ * line with the final registers, IP, flags and instruction count, or {@code ERROR <message>}. The trace is buffered
+ * to learn its length, so only its first {@link #MAX_TRACE} bytes are kept and the rest is reported as truncated.
+ */
+public class EmulationServer implements AutoCloseable {
+    public static final long DEFAULT_MAX_INSTRUCTIONS = 100_000_000;
+    public static final int DEFAULT_MAX_CONNECTIONS = 64;
+    public static final int MAX_TRACE = 16 * 1024 * 1024;
+    private static final int MAX_LINE = 4096;
+    // mov cx, 0xffff; top: add ax, cx; sub cx, 1; jne top
+    private static final byte[] WARM_UP = {
+            (byte) 0xb9, (byte) 0xff, (byte) 0xff,
+            (byte) 0x01, (byte) 0xc8,
+            (byte) 0x83, (byte) 0xe9, (byte) 0x01,
+            (byte) 0x75, (byte) 0xf9,
+    };
+
+    private record Slot(Emu8086 cpu, Jit jit) {
+    }
+
+    /**
+     * Keeps the first {@link #MAX_TRACE} bytes written and drops the rest.
+     */
+    private static final class TraceBuffer extends ByteArrayOutputStream {
+        boolean truncated;
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            int kept = Math.min(len, MAX_TRACE - count);
+            truncated |= kept < len;
+            super.write(b, off, kept);
+        }
+    }
+
+    private record Request(byte[] image, String mode, TraceLevel trace, Register[] registers, int[] values, int ip,
+                           int flags) {
+    }
+
+    private final Path socket;
+    private final ServerSocketChannel server;
+    private final BlockingQueue<Slot> slots;
+    private final ExecutorService connections = newConnectionExecutor();
+    private long maxInstructions = DEFAULT_MAX_INSTRUCTIONS;
+    private Semaphore connectionPermits = new Semaphore(DEFAULT_MAX_CONNECTIONS);
+
+    public EmulationServer(Decoder decoder, Path socket, int cpus) throws IOException {
+        this.socket = socket;
+        slots = new ArrayBlockingQueue<>(cpus);
+        for (int i = 0; i < cpus; i++) {
+            Emu8086 cpu = new Emu8086(decoder);
+            Slot slot = new Slot(cpu, new Jit(cpu.memory().capacity(), Jit.DEFAULT_HOT_THRESHOLD));
+            warmUp(slot);
+            slots.add(slot);
+        }
+
+        Files.deleteIfExists(socket);
+        server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(socket));
+    }
+
+    /**
+     * Uses a virtual thread per connection on Java 21 and later. Older JDKs fall back to a cached pool of platform
+     * threads, which the connection limit keeps bounded.
+     */
+    private static ExecutorService newConnectionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    private static void warmUp(Slot slot) throws IOException {
+        for (String mode : new String[]{"--switch", "--threaded", "--jit"}) {
+            run(slot, new Request(WARM_UP, mode, TraceLevel.OFF, new Register[0], new int[0], -1, -1), null,
+                    Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Sets the number of instructions a request may execute before it is stopped with an error.
+     */
+    public void setMaxInstructions(long maxInstructions) {
+        this.maxInstructions = maxInstructions;
+    }
+
+    /**
+     * Sets the number of connections served at once. Each connection can buffer a program of up to 1MB.
+     */
+    public void setMaxConnections(int maxConnections) {
+        connectionPermits = new Semaphore(maxConnections);
+    }
+
+    public void serve() throws IOException {
+        Semaphore permits = connectionPermits;
+        while (server.isOpen()) {
+            SocketChannel connection;
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            try {
+                connection = server.accept();
+            } catch (AsynchronousCloseException e) {
+                permits.release();
+                return;
+            }
+            connections.execute(() -> {
+                try {
+                    handle(connection);
+                } finally {
+                    permits.release();
+                }
+            });
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        connections.shutdownNow();
+        Files.deleteIfExists(socket);
+    }
+
+    private void handle(SocketChannel connection) {
+        try (connection;
+             InputStream in = new BufferedInputStream(Channels.newInputStream(connection));
+             OutputStream out = new BufferedOutputStream(Channels.newOutputStream(connection))) {
+            String line;
+            while ((line = readLine(in)) != null) {
+                boolean keepOpen = respond(line, in, out);
+                out.flush();
+                if (!keepOpen) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // The client went away
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Handles one request and returns whether the connection can be used for further requests.
+     */
+    private boolean respond(String line, InputStream in, OutputStream out) throws IOException, InterruptedException {
+        String[] fields = line.strip().split("\\s+");
+        int length;
+        try {
+            if (fields.length < 2 || !fields[0].equals("RUN")) {
+                throw new IllegalArgumentException("Expected RUN <length>");
+            }
+            length = Integer.parseInt(fields[1]);
+            if (length < 0 || length > Emu8086.MEMORY_SIZE) {
+                throw new IllegalArgumentException("Program does not fit in memory: " + length + " bytes");
+            }
+        } catch (IllegalArgumentException e) {
+            writeLine(out, "ERROR " + e.getMessage());
+            return false;
+        }
+        byte[] image = in.readNBytes(length);
+        if (image.length < length) {
+            throw new EOFException();
+        }
+
+        Request request;
+        try {
+            request = parse(fields, image);
+        } catch (IllegalArgumentException e) {
+            writeLine(out, "ERROR " + e.getMessage());
+            return true;
+        }
+
+        TraceBuffer trace = request.trace() != TraceLevel.OFF ? new TraceBuffer() : null;
+        BatchRunner.Result result;
+        boolean stopped;
+        Slot slot = slots.take();
+        try {
+            result = run(slot, request, trace, maxInstructions);
+            stopped = slot.cpu().isRunning();
+        } catch (IOException | RuntimeException e) {
+            writeLine(out, "ERROR " + e.getMessage());
+            return true;
+        } finally {
+            slots.put(slot);
+        }
+
+        if (stopped) {
+            writeLine(out, "ERROR Instruction limit exceeded: " + result.instructions());
+            return true;
+        }
+        if (trace != null) {
+            writeLine(out, "TRACE " + trace.size() + (trace.truncated ? " truncated" : ""));
+            trace.writeTo(out);
+        }
+        StringBuilder response = new StringBuilder("OK");
+        BatchRunner.appendState(response, result);
+        writeLine(out, response.toString());
+        return true;
+    }
+
+    private static Request parse(String[] fields, byte[] image) {
+        String mode = "--switch";
+        TraceLevel trace = TraceLevel.OFF;
+        Register[] registers = new Register[fields.length];
+        int[] values = new int[fields.length];
+        int count = 0;
+        int ip = -1;
+        int flags = -1;
+        for (int i = 2; i < fields.length; i++) {
+            int separator = fields[i].indexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Expected <name>=<value>: " + fields[i]);
+            }
+            String name = fields[i].substring(0, separator).toUpperCase();
+            String value = fields[i].substring(separator + 1);
+            switch (name) {
+                case "MODE" -> {
+                    mode = "--" + value;
+                    if (!mode.equals("--switch") && !mode.equals("--threaded") && !mode.equals("--jit")) {
+                        throw new IllegalArgumentException("Unknown mode: " + value);
+                    }
+                }
+                case "TRACE" -> trace = TraceLevel.valueOf(value.toUpperCase());
+                case "IP" -> ip = Integer.decode(value) & 0xFFFF;
+                case "FLAGS" -> flags = Integer.decode(value) & 0xFFFF;
+                default -> {
+                    try {
+                        registers[count] = Register.valueOf(name);
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("Unknown field: " + fields[i].substring(0, separator));
+                    }
+                    values[count] = Integer.decode(value);
+                    count++;
+                }
+            }
+        }
+        return new Request(image, mode, trace, Arrays.copyOf(registers, count), Arrays.copyOf(values, count), ip, flags);
+    }
+
+    private static BatchRunner.Result run(Slot slot, Request request, OutputStream trace, long maxInstructions)
+            throws IOException {
+        Emu8086 cpu = slot.cpu();
+        cpu.reset();
+        cpu.load(ByteBuffer.wrap(request.image()));
+        for (int i = 0; i < request.registers().length; i++) {
+            Register register = request.registers()[i];
+            cpu.setRegister(register.number, register.isWide, request.values()[i]);
+        }
+        if (request.ip() >= 0) {
+            cpu.ip = request.ip();
+        }
+        if (request.flags() >= 0) {
+            cpu.setFlags(request.flags());
+        }
+
+        Tracer tracer = trace != null ? new Tracer(request.trace(), trace) : null;
+        cpu.setTracer(tracer);
+        try {
+            switch (request.mode()) {
+                case "--switch" -> cpu.run(maxInstructions);
+                case "--threaded" -> cpu.runThreaded(maxInstructions);
+                // Compiled blocks survive between requests; loading the image invalidates the pages it replaces
+                default -> cpu.runJit(slot.jit(), maxInstructions);
+            }
+        } finally {
+            if (tracer != null) {
+                cpu.setTracer(null);
+                tracer.close();
+            }
+        }
+        return new BatchRunner.Result(null, cpu.registers.clone(), cpu.ip, cpu.getFlags(), cpu.instructions(), null, null);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                if (line.size() == 0) {
+                    return null;
+                }
+                throw new EOFException();
+            }
+            if (line.size() == MAX_LINE) {
+                throw new IOException("Request line too long");
+            }
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.US_ASCII);
+    }
+
+    private static void writeLine(OutputStream out, String line) throws IOException {
+        out.write(line.getBytes(StandardCharsets.US_ASCII));
+        out.write('\n');
+    }
+}
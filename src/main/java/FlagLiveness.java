@@ -0,0 +1,160 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Backward liveness analysis of the arithmetic flags over the control flow graph of one decode cache page. Every
+ * instruction reachable from the start address without leaving the page gets the set of flags that may be read before
+ * they are written again in {@link DecodeState#liveFlags}. Edges that leave the page, indirect transfers, calls,
+ * interrupts, halts and the end of the program keep every flag live. Because the graph never leaves the page, a write
+ * that could change the result bumps the page generation and discards the annotated decode cache entries.
+ */
+public final class FlagLiveness {
+    public static final int UNKNOWN = -1;
+
+    private static final int ALL = Alu.ARITHMETIC_FLAGS;
+    private static final int CF = Flag.CARRY.setTestMask;
+    private static final int PF = Flag.PARITY.setTestMask;
+    private static final int AF = Flag.AUXILIARY_CARRY.setTestMask;
+    private static final int ZF = Flag.ZERO.setTestMask;
+    private static final int SF = Flag.SIGN.setTestMask;
+    private static final int OF = Flag.OVERFLOW.setTestMask;
+
+    private static final int EXIT = -1;
+    private static final int NONE = -2;
+
+    private FlagLiveness() {
+    }
+
+    /**
+     * Flags that may be read before the instruction overwrites them.
+     */
+    public static int liveIn(DecodeState instruction) {
+        return uses(instruction) | (instruction.liveFlags & ALL & ~defines(instruction));
+    }
+
+    public static void analyze(Emu8086 cpu, int start) {
+        DecodeCache decodeCache = cpu.decodeCache();
+        ByteBuffer memory = cpu.memory();
+        int page = start >> DecodeCache.PAGE_SHIFT;
+        int pageMask = DecodeCache.PAGE_SIZE - 1;
+
+        DecodeState[] nodes = new DecodeState[DecodeCache.PAGE_SIZE];
+        int[] order = new int[DecodeCache.PAGE_SIZE];
+        int[] successor0 = new int[DecodeCache.PAGE_SIZE];
+        int[] successor1 = new int[DecodeCache.PAGE_SIZE];
+        int[] stack = new int[2 * DecodeCache.PAGE_SIZE];
+        int count = 0;
+        int top = 0;
+
+        stack[top++] = start;
+        while (top > 0) {
+            int address = stack[--top];
+            int offset = address & pageMask;
+            if (nodes[offset] != null) {
+                continue;
+            }
+            DecodeState instruction;
+            try {
+                instruction = decodeCache.get(memory, address);
+            } catch (IOException e) {
+                continue;
+            }
+            nodes[offset] = instruction;
+            order[count++] = offset;
+
+            int next = address + instruction.length;
+            successor0[offset] = NONE;
+            successor1[offset] = NONE;
+            switch (instruction.opcode) {
+                case JE, JNE, JL, JNL, JLE, JNLE, JB, JNB, JBE, JNBE, JP, JNP, JO, JNO, JS, JNS,
+                        LOOP, LOOPZ, LOOPNZ, JCXZ -> {
+                    successor0[offset] = successor(cpu, page, next);
+                    successor1[offset] = successor(cpu, page, next + instruction.immediate);
+                }
+                case JMP -> successor0[offset] =
+                        (instruction.operands & DecodeState.RM_OPERAND) == 0 && !instruction.isFar
+                        ? successor(cpu, page, next + instruction.immediate)
+                        : EXIT;
+                case CALL, RET, INT, INTO, IRET, HLT -> successor0[offset] = EXIT;
+                default -> successor0[offset] = successor(cpu, page, next);
+            }
+            if (successor0[offset] >= 0 && nodes[successor0[offset] & pageMask] == null) {
+                stack[top++] = successor0[offset];
+            }
+            if (successor1[offset] >= 0 && nodes[successor1[offset] & pageMask] == null) {
+                stack[top++] = successor1[offset];
+            }
+        }
+
+        int[] liveOut = new int[DecodeCache.PAGE_SIZE];
+        int[] liveIn = new int[DecodeCache.PAGE_SIZE];
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int n = count - 1; n >= 0; n--) {
+                int offset = order[n];
+                int out = live(successor0[offset], liveIn, nodes, pageMask)
+                        | live(successor1[offset], liveIn, nodes, pageMask);
+                DecodeState instruction = nodes[offset];
+                int in = uses(instruction) | (out & ~defines(instruction));
+                if (out != liveOut[offset] || in != liveIn[offset]) {
+                    liveOut[offset] = out;
+                    liveIn[offset] = in;
+                    changed = true;
+                }
+            }
+        }
+
+        for (int n = 0; n < count; n++) {
+            nodes[order[n]].liveFlags = liveOut[order[n]];
+        }
+    }
+
+    private static int successor(Emu8086 cpu, int page, int address) {
+        // Targets are only followed when they stay on the page and within the program without wrapping
+        if (address >> DecodeCache.PAGE_SHIFT != page || address >= cpu.programEnd()) {
+            return EXIT;
+        }
+        return address;
+    }
+
+    private static int live(int successor, int[] liveIn, DecodeState[] nodes, int pageMask) {
+        if (successor == NONE) {
+            return 0;
+        }
+        if (successor == EXIT || nodes[successor & pageMask] == null) {
+            return ALL;
+        }
+        return liveIn[successor & pageMask];
+    }
+
+    private static int uses(DecodeState instruction) {
+        return switch (instruction.opcode) {
+            case JE, JNE, LOOPZ, LOOPNZ -> ZF;
+            case JL, JNL -> SF | OF;
+            case JLE, JNLE -> ZF | SF | OF;
+            case JB, JNB, ADC, SBB, CMC, RCL, RCR -> CF;
+            case JBE, JNBE -> CF | ZF;
+            case JP, JNP -> PF;
+            case JO, JNO, INTO -> OF;
+            case JS, JNS -> SF;
+            case AAA, AAS, DAA, DAS -> AF | CF;
+            case LAHF, PUSHF -> ALL;
+            case MOV, PUSH, POP, XCHG, XLAT, LEA, LDS, LES, ADD, SUB, CMP, INC, DEC, NEG, AND, OR, XOR, TEST, NOT,
+                    CBW, CWD, MOVS, CMPS, SCAS, LODS, STDS, JMP, LOOP, JCXZ, CLC, STC, CLD, STD, CLI, STI, HLT, SAHF,
+                    POPF -> 0;
+            default -> ALL;
+        };
+    }
+
+    private static int defines(DecodeState instruction) {
+        return switch (instruction.opcode) {
+            case ADD, ADC, SUB, SBB, CMP, AND, OR, XOR, TEST, NEG -> ALL;
+            case INC, DEC -> ALL & ~CF;
+            // A repeated compare with CX = 0 leaves the flags alone
+            case CMPS, SCAS -> instruction.isRepeat ? 0 : ALL;
+            case CLC, STC -> CF;
+            default -> 0;
+        };
+    }
+}
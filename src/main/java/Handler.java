@@ -0,0 +1,3 @@
+public interface Handler {
+    void execute(Emu8086 cpu, DecodeState instruction);
+}
@@ -0,0 +1,494 @@
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class Jit {
+    public static final int DEFAULT_HOT_THRESHOLD = 16;
+
+    private static final int MAX_BLOCK_INSTRUCTIONS = 64;
+    private static final int PAGE_SHIFT = 8;
+    private static final int PAGE_MASK = (1 << PAGE_SHIFT) - 1;
+
+    private static final String CPU = "Emu8086";
+    private static final String BLOCK = "CompiledBlock";
+    private static final String HANDLER = "Handler";
+    private static final String DECODE_STATE = "DecodeState";
+
+    private static final int LOCAL_THIS = 0;
+    private static final int LOCAL_CPU = 1;
+    private static final int LOCAL_REGISTERS = 2;
+    private static final int LOCAL_AX = 3;
+    private static final int LOCAL_OP1 = 11;
+    private static final int LOCAL_OP2 = 12;
+    private static final int LOCAL_RESULT = 13;
+    private static final int LOCAL_EA = 14;
+    private static final int LOCAL_VALUE = 15;
+    private static final int MAX_LOCALS = 16;
+    private static final int MAX_STACK = 8;
+
+    private final MethodHandles.Lookup lookup = MethodHandles.lookup();
+    private final int hotThreshold;
+    private final int addressMask;
+    private final CompiledBlock[][] blocks;
+    private final int[][] hotness;
+
+    private long compiledBlocks;
+    private long invalidatedBlocks;
+
+    public Jit(int memorySize, int hotThreshold) {
+        this.hotThreshold = hotThreshold;
+        this.addressMask = memorySize - 1;
+        this.blocks = new CompiledBlock[memorySize >> PAGE_SHIFT][];
+        this.hotness = new int[memorySize >> PAGE_SHIFT][];
+    }
+
+    public static boolean isTerminator(Opcode opcode) {
+        return switch (opcode) {
+            case JE, JNE, JL, JNL, JLE, JNLE, JB, JNB, JBE, JNBE, JP, JNP, JO, JNO, JS, JNS,
+                    LOOP, LOOPZ, LOOPNZ, JCXZ, JMP, CALL, RET, INT, INTO, IRET, HLT -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * Returns the compiled block starting at {@code address}, compiling it once it is hot, or null to interpret it.
+     * Blocks are not chained in bytecode: every block returns its next IP to the runJit dispatch loop, which passes
+     * the block it just ran as {@code previous}. Its two successor links, one per branch direction, let the lookup
+     * skip the page table, but each one still costs a generation check and a return through the dispatcher.
+     */
+    CompiledBlock block(Emu8086 cpu, CompiledBlock previous, int address) throws IOException {
+        if (previous != null) {
+            CompiledBlock next = previous.successor0;
+            if (next != null && next.start == address && next.isValid(cpu)) {
+                return next;
+            }
+            next = previous.successor1;
+            if (next != null && next.start == address && next.isValid(cpu)) {
+                return next;
+            }
+        }
+
+        int page = (address & addressMask) >> PAGE_SHIFT;
+        CompiledBlock[] pageBlocks = blocks[page];
+        CompiledBlock block = pageBlocks == null ? null : pageBlocks[address & PAGE_MASK];
+        if (block != null && !block.isValid(cpu)) {
+            pageBlocks[address & PAGE_MASK] = null;
+            invalidatedBlocks++;
+            block = null;
+        }
+
+        if (block == null) {
+            int[] counters = hotness[page];
+            if (counters == null) {
+                counters = new int[1 << PAGE_SHIFT];
+                hotness[page] = counters;
+            }
+            if (++counters[address & PAGE_MASK] < hotThreshold) {
+                return null;
+            }
+            counters[address & PAGE_MASK] = 0;
+
+            block = compile(cpu, address);
+            if (pageBlocks == null) {
+                pageBlocks = new CompiledBlock[1 << PAGE_SHIFT];
+                blocks[page] = pageBlocks;
+            }
+            pageBlocks[address & PAGE_MASK] = block;
+            compiledBlocks++;
+        }
+
+        if (previous != null) {
+            if (previous.successor0 == null || !previous.successor0.isValid(cpu)) {
+                previous.successor0 = block;
+            } else {
+                previous.successor1 = block;
+            }
+        }
+        return block;
+    }
+
+    public void reset() {
+        Arrays.fill(blocks, null);
+        Arrays.fill(hotness, null);
+    }
+
+    public long compiledBlocks() {
+        return compiledBlocks;
+    }
+
+    public long invalidatedBlocks() {
+        return invalidatedBlocks;
+    }
+
+    private CompiledBlock compile(Emu8086 cpu, int start) throws IOException {
+        DecodeCache decodeCache = cpu.decodeCache();
+        ByteBuffer memory = cpu.memory();
+
+        List<DecodeState> instructions = new ArrayList<>();
+        int address = start;
+        while (address < cpu.programEnd() && instructions.size() < MAX_BLOCK_INSTRUCTIONS) {
+            DecodeState instruction;
+            try {
+                instruction = decodeCache.get(memory, address);
+            } catch (IOException e) {
+                if (instructions.isEmpty()) {
+                    throw e;
+                }
+                break;
+            }
+            if (instruction.handler == null) {
+                instruction.handler = ThreadedCode.bind(instruction);
+            }
+            if (instruction.liveFlags == FlagLiveness.UNKNOWN) {
+                FlagLiveness.analyze(cpu, address);
+            }
+            instructions.add(instruction);
+            address = (address + instruction.length) & addressMask;
+            if (isTerminator(instruction.opcode)) {
+                break;
+            }
+        }
+
+        ClassFileWriter classFile = new ClassFileWriter("JitBlock", BLOCK);
+        classFile.method(0x0001, "<init>", "()V", 1, 1)
+                .aload(LOCAL_THIS)
+                .invokespecial(BLOCK, "<init>", "()V")
+                .op(0xb1)
+                .end();
+
+        ClassFileWriter.Code code = classFile.method(0x0001, "execute", "(L" + CPU + ";)I", MAX_STACK, MAX_LOCALS);
+        new BlockEmitter(code, instructions, cpu.ip, start, (address - start) & addressMask).emit();
+        code.end();
+
+        CompiledBlock block;
+        try {
+            MethodHandles.Lookup blockLookup = lookup.defineHiddenClass(classFile.toByteArray(), true);
+            block = (CompiledBlock) blockLookup.findConstructor(blockLookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+        } catch (Throwable e) {
+            throw new IllegalStateException("Could not define compiled block at " + Integer.toHexString(start), e);
+        }
+
+        block.start = start;
+        block.end = address;
+        block.codeBase = cpu.segmentBases[DecodeState.CS];
+        int pages = ((address - 1) >> DecodeCache.PAGE_SHIFT) - (start >> DecodeCache.PAGE_SHIFT) + 1;
+        block.generations = new int[Math.max(pages, 1)];
+        for (int i = 0; i < block.generations.length; i++) {
+            block.generations[i] = decodeCache.generation(start + (i << DecodeCache.PAGE_SHIFT));
+        }
+        block.instructions = instructions.toArray(new DecodeState[0]);
+        block.handlers = new Handler[block.instructions.length];
+        for (int i = 0; i < block.handlers.length; i++) {
+            block.handlers[i] = block.instructions[i].handler;
+        }
+        return block;
+    }
+
+    private static class BlockEmitter {
+        private final ClassFileWriter.Code code;
+        private final List<DecodeState> instructions;
+        private final int startIp;
+        private final int start;
+        private final int size;
+
+        private int unsyncedRegisters;
+        private int pendingFlagsKind = Alu.NONE;
+        private boolean pendingFlagsWide;
+        private boolean storedToMemory;
+
+        BlockEmitter(ClassFileWriter.Code code, List<DecodeState> instructions, int startIp, int start, int size) {
+            this.code = code;
+            this.instructions = instructions;
+            this.startIp = startIp;
+            this.start = start;
+            this.size = size;
+        }
+
+        void emit() {
+            code.aload(LOCAL_CPU).getfield(CPU, "registers", "[I").astore(LOCAL_REGISTERS);
+            loadRegisters();
+
+            int ip = startIp;
+            for (int i = 0; i < instructions.size(); i++) {
+                DecodeState instruction = instructions.get(i);
+                ip = (ip + instruction.length) & 0xFFFF;
+                boolean isLast = i == instructions.size() - 1;
+                if (isLast && isTerminator(instruction.opcode)) {
+                    sync(FlagLiveness.liveIn(instruction));
+                    code.aload(LOCAL_CPU).iconst(ip).putfield(CPU, "ip", "I");
+                    callHandler(i);
+                    code.aload(LOCAL_CPU).getfield(CPU, "ip", "I").op(0xac);
+                    return;
+                }
+                if (emitInstruction(instruction)) {
+                    if (storedToMemory && !isLast) {
+                        exitIfStoredIntoBlock(instructions.size() - i - 1, ip);
+                    }
+                    storedToMemory = false;
+                } else {
+                    sync(FlagLiveness.liveIn(instruction));
+                    code.aload(LOCAL_CPU).iconst(ip).putfield(CPU, "ip", "I");
+                    callHandler(i);
+                    loadRegisters();
+                    boolean mayStore = (instruction.operands & DecodeState.RM_MEMORY) != 0
+                            || instruction.opcode == Opcode.MOVS || instruction.opcode == Opcode.STDS;
+                    if (mayStore && !isLast) {
+                        exitIfModified(instructions.size() - i - 1, ip);
+                    }
+                }
+            }
+            sync(instructions.get(instructions.size() - 1).liveFlags);
+            code.iconst(ip).op(0xac);
+        }
+
+        /**
+         * Leaves the block when the inlined store at {@code LOCAL_EA} hit its own code. A word store that starts one
+         * byte before the block also changes it.
+         */
+        private void exitIfStoredIntoBlock(int unexecuted, int ip) {
+            code.iload(LOCAL_EA).iconst(start - 1).op(0x64).iconst(Emu8086.ADDRESS_MASK).op(0x7e).iconst(size + 1);
+            // if_icmpge
+            exit(code.branch(0xa2), unexecuted, ip);
+        }
+
+        /**
+         * Leaves the block when a handler changed a page it was compiled from.
+         */
+        private void exitIfModified(int unexecuted, int ip) {
+            code.aload(LOCAL_THIS).aload(LOCAL_CPU).invokevirtual(BLOCK, "isValid", "(L" + CPU + ";)Z");
+            // ifne
+            exit(code.branch(0x9a), unexecuted, ip);
+        }
+
+        /**
+         * Emits the exit taken when {@code branch} falls through, so the interpreter runs the new code from {@code ip}
+         * on. The exit path writes back registers and flags without changing the state of the main path.
+         */
+        private void exit(int branch, int unexecuted, int ip) {
+            int registers = unsyncedRegisters;
+            int flagsKind = pendingFlagsKind;
+            sync(Alu.ARITHMETIC_FLAGS);
+            unsyncedRegisters = registers;
+            pendingFlagsKind = flagsKind;
+            code.aload(LOCAL_CPU).iconst(unexecuted).invokevirtual(CPU, "exitBlock", "(I)V")
+                    .iconst(ip).op(0xac)
+                    .target(branch);
+        }
+
+        private void callHandler(int index) {
+            code.aload(LOCAL_THIS).getfield(BLOCK, "handlers", "[L" + HANDLER + ";").iconst(index).op(0x32)
+                    .aload(LOCAL_CPU)
+                    .aload(LOCAL_THIS).getfield(BLOCK, "instructions", "[L" + DECODE_STATE + ";").iconst(index).op(0x32)
+                    .invokeinterface(HANDLER, "execute", "(L" + CPU + ";L" + DECODE_STATE + ";)V", 2);
+        }
+
+        private void loadRegisters() {
+            for (int n = 0; n < 8; n++) {
+                code.aload(LOCAL_REGISTERS).iconst(n).op(0x2e).istore(LOCAL_AX + n);
+            }
+        }
+
+        /**
+         * Writes back registers and the pending flags, unless none of the flags are live at this point.
+         */
+        private void sync(int liveFlags) {
+            if (pendingFlagsKind != Alu.NONE && (liveFlags & Alu.ARITHMETIC_FLAGS) != 0) {
+                code.aload(LOCAL_CPU)
+                        .iconst(pendingFlagsKind)
+                        .iload(LOCAL_OP1)
+                        .iload(LOCAL_OP2)
+                        .iload(LOCAL_RESULT)
+                        .iconst(pendingFlagsWide ? 1 : 0)
+                        .invokevirtual(CPU, "setLazyFlags", "(IIIIZ)V");
+            }
+            pendingFlagsKind = Alu.NONE;
+            if (unsyncedRegisters != 0) {
+                for (int n = 0; n < 8; n++) {
+                    if ((unsyncedRegisters & (1 << n)) != 0) {
+                        code.aload(LOCAL_REGISTERS).iconst(n).iload(LOCAL_AX + n).op(0x4f);
+                    }
+                }
+                code.aload(LOCAL_CPU)
+                        .op(0x59)
+                        .getfield(CPU, "dirtyRegisters", "I")
+                        .iconst(unsyncedRegisters)
+                        .op(0x80)
+                        .putfield(CPU, "dirtyRegisters", "I");
+                unsyncedRegisters = 0;
+            }
+        }
+
+        private boolean emitInstruction(DecodeState instruction) {
+            int operands = instruction.operands;
+            if ((operands & DecodeState.REG_REGISTER) != 0 && instruction.reg >= 8) {
+                return false;
+            }
+
+            int kind;
+            // iadd, isub, iand, ior or ixor
+            int operation = 0x60;
+            boolean writeResult = true;
+            switch (instruction.opcode) {
+                case MOV -> kind = Alu.NONE;
+                case ADD -> kind = Alu.ADD;
+                case SUB -> {
+                    kind = Alu.SUB;
+                    operation = 0x64;
+                }
+                case CMP -> {
+                    kind = Alu.SUB;
+                    operation = 0x64;
+                    writeResult = false;
+                }
+                case AND -> {
+                    kind = Alu.LOGIC;
+                    operation = 0x7e;
+                }
+                case OR -> {
+                    kind = Alu.LOGIC;
+                    operation = 0x80;
+                }
+                case XOR -> {
+                    kind = Alu.LOGIC;
+                    operation = 0x82;
+                }
+                case TEST -> {
+                    kind = Alu.LOGIC;
+                    operation = 0x7e;
+                    writeResult = false;
+                }
+                default -> {
+                    return false;
+                }
+            }
+
+            boolean isWide = instruction.isWide;
+            boolean hasRm = (operands & DecodeState.RM_OPERAND) != 0;
+            boolean hasReg = (operands & DecodeState.REG_REGISTER) != 0;
+            boolean isMemory = (operands & DecodeState.RM_MEMORY) != 0;
+            boolean destinationIsReg = !hasRm || (hasReg && instruction.isToReg);
+
+            if (isMemory) {
+                effectiveAddress(instruction);
+                code.istore(LOCAL_EA);
+            }
+
+            if (kind == Alu.NONE) {
+                if (!hasRm) {
+                    code.iconst(instruction.immediate);
+                } else if (!hasReg) {
+                    code.iconst(instruction.immediate);
+                } else if (instruction.isToReg) {
+                    loadRm(instruction);
+                } else {
+                    loadRegister(instruction.reg, isWide);
+                }
+                store(instruction, destinationIsReg);
+                return true;
+            }
+
+            if (destinationIsReg) {
+                loadRegister(instruction.reg, isWide);
+            } else {
+                loadRm(instruction);
+            }
+            code.istore(LOCAL_OP1);
+
+            if (!hasRm || !hasReg) {
+                code.iconst(instruction.immediate & (isWide ? 0xFFFF : 0xFF));
+            } else if (destinationIsReg) {
+                loadRm(instruction);
+            } else {
+                loadRegister(instruction.reg, isWide);
+            }
+            code.istore(LOCAL_OP2);
+
+            code.iload(LOCAL_OP1).iload(LOCAL_OP2).op(operation).istore(LOCAL_RESULT);
+            pendingFlagsKind = kind;
+            pendingFlagsWide = isWide;
+
+            if (writeResult) {
+                code.iload(LOCAL_RESULT);
+                store(instruction, destinationIsReg);
+            }
+            return true;
+        }
+
+        private void store(DecodeState instruction, boolean destinationIsReg) {
+            if (destinationIsReg) {
+                storeRegister(instruction.reg, instruction.isWide);
+            } else if ((instruction.operands & DecodeState.RM_MEMORY) != 0) {
+                code.istore(LOCAL_VALUE);
+                code.aload(LOCAL_CPU)
+                        .iload(LOCAL_EA)
+                        .iconst(instruction.isWide ? 1 : 0)
+                        .iload(LOCAL_VALUE)
+                        .invokevirtual(CPU, "setMemory", "(IZI)V");
+                storedToMemory = true;
+            } else {
+                storeRegister(instruction.rm, instruction.isWide);
+            }
+        }
+
+        private void loadRm(DecodeState instruction) {
+            if ((instruction.operands & DecodeState.RM_MEMORY) != 0) {
+                code.aload(LOCAL_CPU)
+                        .iload(LOCAL_EA)
+                        .iconst(instruction.isWide ? 1 : 0)
+                        .invokevirtual(CPU, "getMemory", "(IZ)I");
+            } else {
+                loadRegister(instruction.rm, instruction.isWide);
+            }
+        }
+
+        private void loadRegister(int number, boolean isWide) {
+            if (isWide) {
+                code.iload(LOCAL_AX + number);
+            } else {
+                code.iload(LOCAL_AX + (number & 3));
+                if ((number & 4) != 0) {
+                    code.iconst(8).op(0x7a);
+                }
+                code.iconst(0xFF).op(0x7e);
+            }
+        }
+
+        private void storeRegister(int number, boolean isWide) {
+            if (isWide) {
+                code.iconst(0xFFFF).op(0x7e).istore(LOCAL_AX + number);
+                unsyncedRegisters |= 1 << number;
+            } else {
+                int slot = number & 3;
+                int shift = (number & 4) << 1;
+                code.iconst(0xFF).op(0x7e);
+                if (shift != 0) {
+                    code.iconst(shift).op(0x78);
+                }
+                code.iload(LOCAL_AX + slot).iconst(~(0xFF << shift) & 0xFFFF).op(0x7e).op(0x80).istore(LOCAL_AX + slot);
+                unsyncedRegisters |= 1 << slot;
+            }
+        }
+
+        private void effectiveAddress(DecodeState instruction) {
+            // Mirrors Emu8086.effectiveAddress
+            switch (instruction.rm) {
+                case 0 -> code.iload(LOCAL_AX + 3).iload(LOCAL_AX + 6).op(0x60);
+                case 1 -> code.iload(LOCAL_AX + 3).iload(LOCAL_AX + 7).op(0x60);
+                case 2 -> code.iload(LOCAL_AX + 5).iload(LOCAL_AX + 6).op(0x60);
+                case 3 -> code.iload(LOCAL_AX + 5).iload(LOCAL_AX + 7).op(0x60);
+                case 4 -> code.iload(LOCAL_AX + 6);
+                case 5 -> code.iload(LOCAL_AX + 7);
+                case 6 -> code.iload(LOCAL_AX + 5);
+                case 7 -> code.iload(LOCAL_AX + 3);
+                default -> code.iconst(0);
+            }
+            code.iconst(instruction.displacement).op(0x60).iconst(0xFFFF).op(0x7e)
+                    .aload(LOCAL_CPU).getfield(CPU, "segmentBases", "[I").iconst(instruction.segment).op(0x2e)
+                    .op(0x60).iconst(Emu8086.ADDRESS_MASK).op(0x7e);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares memory images and reports the changed address ranges. Runs of equal bytes are skipped with
+ * {@link ByteBuffer#mismatch}, which the JDK vectorizes, and changes separated by fewer than {@link #MERGE_GAP} equal
+ * bytes are reported as a single range.
+ */
+public final class MemoryDiff {
+    static final int MERGE_GAP = 16;
+    private static final ByteBuffer ZEROS = ByteBuffer.allocate(4096).asReadOnlyBuffer();
+
+    /**
+     * A changed range of linear addresses, end exclusive.
+     */
+    public record Range(int start, int end) {
+        @Override
+        public String toString() {
+            return String.format("0x%05x-0x%05x", start, end - 1);
+        }
+    }
+
+    private MemoryDiff() {
+    }
+
+    /**
+     * Compares two images. When their sizes differ the missing tail of the shorter one reads as zeros.
+     */
+    public static List<Range> compare(ByteBuffer expected, ByteBuffer actual) {
+        List<Range> ranges = new ArrayList<>();
+        int length = Math.min(expected.limit(), actual.limit());
+        compare(ranges, expected, 0, actual, 0, length);
+        ByteBuffer longer = expected.limit() > actual.limit() ? expected : actual;
+        for (int position = length; position < longer.limit(); position += ZEROS.capacity()) {
+            compare(ranges, ZEROS, 0, longer, position, Math.min(ZEROS.capacity(), longer.limit() - position));
+        }
+        return ranges;
+    }
+
+    /**
+     * Appends the changes between {@code length} bytes of both buffers to {@code ranges}, using addresses relative to
+     * {@code actualOffset}. Ranges must be appended in address order. Each call allocates one view of each buffer,
+     * which every mismatch search reuses.
+     */
+    static void compare(List<Range> ranges, ByteBuffer expected, int expectedOffset, ByteBuffer actual, int actualOffset,
+                        int length) {
+        expected = expected.duplicate();
+        actual = actual.duplicate();
+        int position = 0;
+        while (position < length) {
+            int offset = mismatch(expected, expectedOffset + position, actual, actualOffset + position, length - position);
+            if (offset < 0) {
+                return;
+            }
+            int start = position + offset;
+            int end = start + 1;
+            while (end < length) {
+                int next = mismatch(expected, expectedOffset + end, actual, actualOffset + end, Math.min(MERGE_GAP, length - end));
+                if (next < 0) {
+                    break;
+                }
+                end += next + 1;
+            }
+            add(ranges, actualOffset + start, actualOffset + end);
+            position = end;
+        }
+    }
+
+    /**
+     * Narrows both views to the compared ranges instead of slicing, since ByteBuffer has no absolute range mismatch.
+     */
+    private static int mismatch(ByteBuffer expected, int expectedOffset, ByteBuffer actual, int actualOffset, int length) {
+        expected.clear().position(expectedOffset).limit(expectedOffset + length);
+        actual.clear().position(actualOffset).limit(actualOffset + length);
+        return expected.mismatch(actual);
+    }
+
+    private static void add(List<Range> ranges, int start, int end) {
+        if (!ranges.isEmpty()) {
+            Range last = ranges.get(ranges.size() - 1);
+            if (start - last.end() < MERGE_GAP) {
+                ranges.set(ranges.size() - 1, new Range(last.start(), end));
+                return;
+            }
+        }
+        ranges.add(new Range(start, end));
+    }
+
+    public static String format(List<Range> ranges) {
+        if (ranges.isEmpty()) {
+            return "identical";
+        }
+        StringBuilder text = new StringBuilder();
+        for (Range range : ranges) {
+            if (!text.isEmpty()) {
+                text.append(',');
+            }
+            text.append(range);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Reads a memory image into {@code image}, which is cleared first and flipped afterwards.
+     */
+    public static ByteBuffer read(Path file, ByteBuffer image) throws IOException {
+        image.clear();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > image.capacity()) {
+                throw new IOException("Memory image too large: " + channel.size() + " bytes");
+            }
+            int read;
+            do {
+                read = channel.read(image);
+            } while (read >= 0 && image.hasRemaining());
+        }
+        return image.flip();
+    }
+
+    /**
+     * Writes the whole buffer to a file. The channel copies a heap buffer into a temporary direct buffer first, so
+     * only a mapped or direct memory buffer is written without an extra copy.
+     */
+    public static void dump(ByteBuffer memory, Path file) throws IOException {
+        ByteBuffer contents = memory.duplicate().clear();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (contents.hasRemaining()) {
+                channel.write(contents);
+            }
+        }
+    }
+}
@@ -1,4 +1,2 @@
-import java.util.EnumSet;
-
-public record Op(Opcode code, EnumSet<OpcodeFlags> flags) {
+public record Op(Opcode code, int flags) {
 }
@@ -9,5 +9,14 @@ public enum OpcodeFlags {
     TO_SR,
     FROM_SR,
     SINT8,
-    SINT16
+    SINT16,
+    // Offset word followed by a segment word
+    FAR,
+    ;
+
+    public final int mask;
+
+    OpcodeFlags() {
+        mask = 1 << ordinal();
+    }
 }
@@ -0,0 +1,110 @@
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Counts executed instructions per opcode and per address, and memory operand accesses per addressing mode.
+ */
+public class Profiler {
+    private static final int HOT_SPOTS = 20;
+    private static final int ADDRESS_BITS = 20;
+
+    private static final Opcode[] OPCODES = Opcode.values();
+    private static final EffectiveAddress[] EFFECTIVE_ADDRESSES = EffectiveAddress.values();
+
+    private final long[] opcodes = new long[OPCODES.length];
+    private final long[] addresses;
+    private final long[] reads = new long[EFFECTIVE_ADDRESSES.length];
+    private final long[] writes = new long[EFFECTIVE_ADDRESSES.length];
+    private long instructions;
+
+    public Profiler(int memorySize) {
+        addresses = new long[memorySize];
+    }
+
+    void count(int address, DecodeState instruction) {
+        instructions++;
+        opcodes[instruction.opcode.ordinal()]++;
+        addresses[address]++;
+        if ((instruction.operands & DecodeState.RM_MEMORY) != 0) {
+            if (reads(instruction)) {
+                reads[instruction.rm]++;
+            }
+            if (writes(instruction)) {
+                writes[instruction.rm]++;
+            }
+        }
+    }
+
+    private static boolean reads(DecodeState instruction) {
+        return switch (instruction.opcode) {
+            case MOV -> instruction.isToReg;
+            case POP, LEA -> false;
+            default -> true;
+        };
+    }
+
+    private static boolean writes(DecodeState instruction) {
+        boolean toMemory = !instruction.isToReg || (instruction.operands & DecodeState.REG_REGISTER) == 0;
+        return switch (instruction.opcode) {
+            case MOV, ADD, ADC, SUB, SBB, AND, OR, XOR -> toMemory;
+            case INC, DEC, NEG, NOT, SHL, SHR, SAR, ROL, ROR, RCL, RCR, POP, XCHG -> true;
+            default -> false;
+        };
+    }
+
+    public void report(PrintStream out) {
+        out.printf("profile: %d instructions%n", instructions);
+        if (instructions == 0) {
+            return;
+        }
+
+        out.println("opcodes:");
+        long[] sorted = new long[opcodes.length];
+        int count = 0;
+        for (int i = 0; i < opcodes.length; i++) {
+            if (opcodes[i] != 0) {
+                sorted[count++] = (opcodes[i] << 8) | i;
+            }
+        }
+        Arrays.sort(sorted, 0, count);
+        for (int i = count - 1; i >= 0; i--) {
+            long executed = sorted[i] >>> 8;
+            out.printf("  %-8s %12d %6.2f%%%n", OPCODES[(int) (sorted[i] & 0xFF)], executed, percentage(executed));
+        }
+
+        out.println("hot spots:");
+        sorted = new long[HOT_SPOTS];
+        count = 0;
+        for (int address = 0; address < addresses.length; address++) {
+            long executed = addresses[address];
+            if (executed == 0) {
+                continue;
+            }
+            long entry = (executed << ADDRESS_BITS) | address;
+            if (count < HOT_SPOTS) {
+                sorted[count++] = entry;
+            } else if (entry > sorted[0]) {
+                sorted[0] = entry;
+            } else {
+                continue;
+            }
+            Arrays.sort(sorted, 0, count);
+        }
+        for (int i = count - 1; i >= 0; i--) {
+            long executed = sorted[i] >>> ADDRESS_BITS;
+            out.printf("  0x%05x %12d %6.2f%%%n", sorted[i] & ((1 << ADDRESS_BITS) - 1), executed, percentage(executed));
+        }
+
+        out.println("memory operands:");
+        for (EffectiveAddress mode : EFFECTIVE_ADDRESSES) {
+            int i = mode.ordinal();
+            if (reads[i] != 0 || writes[i] != 0) {
+                out.printf("  %-8s %12d reads %12d writes%n", mode.name(), reads[i], writes[i]);
+            }
+        }
+    }
+
+    private double percentage(long executed) {
+        return 100.0 * executed / instructions;
+    }
+}
@@ -0,0 +1,338 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Records execution as an append-only binary log for {@link Replay}. Every instruction adds a delta with the new IP,
+ * the registers and flags that changed and the final contents of the memory it wrote. Flags are recorded as the CPU
+ * holds them, materialized flags plus any pending ALU result, so recording does not compute flags nobody reads. Every {@code checkpointInterval}
+ * instructions the full state is captured with {@link Emu8086#snapshot()}, which only copies the pages written since
+ * the previous checkpoint. Deltas are collected in preallocated chunks that a writer thread frames and writes together
+ * with the checkpoints, so the execution thread never waits for output unless the writer falls behind.
+ * <p>
+ * The log is a sequence of frames, each a type byte, a little-endian int payload length and the payload. A checkpoint
+ * holds the instruction count, registers, flags, IP, program end, halted flag and every page that changed since the
+ * previous checkpoint. A delta frame holds the instruction count before its first delta, the number of deltas and the
+ * deltas themselves.
+ */
+public class Recorder implements AutoCloseable {
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 1 << 20;
+
+    static final byte CHECKPOINT = 1;
+    static final byte DELTAS = 2;
+    static final int FRAME_HEADER_SIZE = 1 + 4;
+    static final int DELTAS_HEADER_SIZE = 8 + 4;
+    static final int REGISTER_MASK = 0xFFF;
+    static final int FLAGS_CHANGED = 1 << 12;
+    static final int HALTED = 1 << 13;
+    static final int MEMORY_WRITTEN = 1 << 14;
+    static final int LAZY_FLAGS = 1 << 15;
+    static final int LAZY_WIDE = 0x80;
+
+    // IP, change mask, registers, flags, pending ALU result and memory run count
+    private static final int MAX_DELTA_SIZE = 2 + 2 + 2 * 12 + 2 + 1 + 3 * 4 + 2;
+    private static final int RUN_HEADER_SIZE = 4 + 4;
+    private static final int MAX_RUNS = 16;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int CHUNKS = 4;
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    private final int checkpointInterval;
+    private final int[] previousRegisters = new int[12];
+    private int previousFlags;
+    private int previousLazyKind;
+    private int previousLazyOp1;
+    private int previousLazyOp2;
+    private int previousLazyResult;
+    private boolean previousLazyIsWide;
+    private boolean previousHalted;
+    private long checkpointInstruction;
+    // Memory written by the current instruction as [start, end) runs, merged while they touch
+    private final int[] runStarts = new int[MAX_RUNS];
+    private final int[] runEnds = new int[MAX_RUNS];
+    private int runs;
+
+    private final BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(CHUNKS);
+    private final BlockingQueue<Chunk> full = new ArrayBlockingQueue<>(CHUNKS + 2);
+    private final Thread writer;
+    private final OutputStream out;
+    private volatile IOException failure;
+    private Chunk chunk;
+
+    public Recorder(OutputStream out, int checkpointInterval) {
+        if (checkpointInterval <= 0) {
+            throw new IllegalArgumentException("Checkpoint interval must be positive: " + checkpointInterval);
+        }
+        this.checkpointInterval = checkpointInterval;
+        this.out = new BufferedOutputStream(out, OUTPUT_BUFFER_SIZE);
+        for (int i = 0; i < CHUNKS; i++) {
+            free.add(new Chunk(CHUNK_SIZE));
+        }
+        chunk = free.remove();
+        writer = new Thread(this::write, "record-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    void start(Emu8086 cpu) {
+        System.arraycopy(cpu.registers, 0, previousRegisters, 0, previousRegisters.length);
+        previousHalted = cpu.isHalted();
+        runs = 0;
+        checkpoint(cpu);
+    }
+
+    void written(int address, int length) {
+        int end = address + length;
+        if (end > Emu8086.MEMORY_SIZE) {
+            written(address, Emu8086.MEMORY_SIZE - address);
+            written(0, end - Emu8086.MEMORY_SIZE);
+            return;
+        }
+        if (runs > 0) {
+            int last = runs - 1;
+            if (address <= runEnds[last] && end >= runStarts[last]) {
+                runStarts[last] = Math.min(runStarts[last], address);
+                runEnds[last] = Math.max(runEnds[last], end);
+                return;
+            }
+            if (runs == MAX_RUNS) {
+                // Scattered writes are covered by a single run, the bytes in between are recorded unchanged
+                for (int n = 0; n < runs; n++) {
+                    address = Math.min(address, runStarts[n]);
+                    end = Math.max(end, runEnds[n]);
+                }
+                runs = 0;
+            }
+        }
+        runStarts[runs] = address;
+        runEnds[runs] = end;
+        runs++;
+    }
+
+    void record(Emu8086 cpu) {
+        int size = MAX_DELTA_SIZE;
+        for (int n = 0; n < runs; n++) {
+            size += RUN_HEADER_SIZE + runEnds[n] - runStarts[n];
+        }
+        reserve(size);
+        ByteBuffer data = chunk.data;
+        if (chunk.count == 0) {
+            chunk.first = cpu.instructions - 1;
+        }
+
+        data.putShort((short) cpu.ip);
+        int maskPosition = data.position();
+        data.putShort((short) 0);
+        int mask = 0;
+        int[] registers = cpu.registers;
+        for (int dirty = cpu.dirtyRegisters; dirty != 0; dirty &= dirty - 1) {
+            int number = Integer.numberOfTrailingZeros(dirty);
+            int value = registers[number];
+            if (value != previousRegisters[number]) {
+                mask |= 1 << number;
+                data.putShort((short) value);
+                previousRegisters[number] = value;
+            }
+        }
+        int kind = cpu.lazyKind;
+        if (cpu.flags != previousFlags || kind != previousLazyKind || kind != Alu.NONE
+                && (cpu.lazyOp1 != previousLazyOp1 || cpu.lazyOp2 != previousLazyOp2
+                || cpu.lazyResult != previousLazyResult || cpu.lazyIsWide != previousLazyIsWide)) {
+            mask |= FLAGS_CHANGED;
+            data.putShort((short) cpu.flags);
+            if (kind != Alu.NONE) {
+                mask |= LAZY_FLAGS;
+                data.put((byte) (kind | (cpu.lazyIsWide ? LAZY_WIDE : 0)))
+                        .putInt(cpu.lazyOp1)
+                        .putInt(cpu.lazyOp2)
+                        .putInt(cpu.lazyResult);
+            }
+            rememberFlags(cpu);
+        }
+        if (cpu.isHalted() && !previousHalted) {
+            mask |= HALTED;
+            previousHalted = true;
+        }
+        if (runs > 0) {
+            mask |= MEMORY_WRITTEN;
+            data.putShort((short) runs);
+            ByteBuffer memory = cpu.memory();
+            for (int n = 0; n < runs; n++) {
+                int length = runEnds[n] - runStarts[n];
+                data.putInt(runStarts[n]).putInt(length);
+                data.put(data.position(), memory, runStarts[n], length);
+                data.position(data.position() + length);
+            }
+            runs = 0;
+        }
+        data.putShort(maskPosition, (short) mask);
+        chunk.count++;
+
+        if (cpu.instructions - checkpointInstruction >= checkpointInterval) {
+            checkpoint(cpu);
+        }
+    }
+
+    /**
+     * Captures the full state. The snapshot materializes the flags, which is the only place recording does.
+     */
+    private void checkpoint(Emu8086 cpu) {
+        submit();
+        checkpointInstruction = cpu.instructions;
+        put(new Chunk(cpu.snapshot(), cpu.instructions));
+        rememberFlags(cpu);
+    }
+
+    private void rememberFlags(Emu8086 cpu) {
+        previousFlags = cpu.flags;
+        previousLazyKind = cpu.lazyKind;
+        previousLazyOp1 = cpu.lazyOp1;
+        previousLazyOp2 = cpu.lazyOp2;
+        previousLazyResult = cpu.lazyResult;
+        previousLazyIsWide = cpu.lazyIsWide;
+    }
+
+    private void reserve(int size) {
+        if (chunk.data.remaining() >= size) {
+            return;
+        }
+        submit();
+        if (chunk.data.remaining() < size) {
+            // Instructions that write more than a chunk get a buffer of their own that is not reused
+            free.add(chunk);
+            chunk = new Chunk(size);
+        }
+    }
+
+    private void submit() {
+        if (chunk.count == 0) {
+            return;
+        }
+        put(chunk);
+        try {
+            chunk = free.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void put(Chunk next) {
+        try {
+            full.put(next);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        submit();
+        put(Chunk.END);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void write() {
+        Snapshot previous = Snapshot.EMPTY;
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE + DELTAS_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            while (true) {
+                Chunk next = full.take();
+                if (next == Chunk.END) {
+                    break;
+                }
+                if (next.checkpoint != null) {
+                    writeCheckpoint(next.checkpoint, next.first, previous);
+                    previous = next.checkpoint;
+                    continue;
+                }
+                header.clear()
+                        .put(DELTAS)
+                        .putInt(DELTAS_HEADER_SIZE + next.data.position())
+                        .putLong(next.first)
+                        .putInt(next.count);
+                out.write(header.array(), 0, header.position());
+                out.write(next.data.array(), 0, next.data.position());
+                if (next.data.capacity() == CHUNK_SIZE) {
+                    next.data.clear();
+                    next.count = 0;
+                    free.add(next);
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            failure = e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeCheckpoint(Snapshot snapshot, long instruction, Snapshot previous) throws IOException {
+        int pageCount = Emu8086.MEMORY_SIZE >> DecodeCache.PAGE_SHIFT;
+        int changed = 0;
+        int size = 8 + 2 * 12 + 2 + 2 + 4 + 1 + 4;
+        for (int page = 0; page < pageCount; page++) {
+            byte[] contents = snapshot.page(page);
+            // Pages that did not change since the previous snapshot are shared with it
+            if (contents != previous.page(page)) {
+                changed++;
+                size += 2 + 1 + (contents != null ? DecodeCache.PAGE_SIZE : 0);
+            }
+        }
+
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + size).order(ByteOrder.LITTLE_ENDIAN);
+        frame.put(CHECKPOINT).putInt(size).putLong(instruction);
+        for (int register : snapshot.registers) {
+            frame.putShort((short) register);
+        }
+        frame.putShort((short) snapshot.flags)
+                .putShort((short) snapshot.ip)
+                .putInt(snapshot.programEnd)
+                .put((byte) (snapshot.halted ? 1 : 0))
+                .putInt(changed);
+        for (int page = 0; page < pageCount; page++) {
+            byte[] contents = snapshot.page(page);
+            if (contents != previous.page(page)) {
+                frame.putShort((short) page);
+                if (contents != null) {
+                    frame.put((byte) 1).put(contents);
+                } else {
+                    frame.put((byte) 0);
+                }
+            }
+        }
+        out.write(frame.array(), 0, frame.position());
+    }
+
+    private static final class Chunk {
+        static final Chunk END = new Chunk(0);
+
+        final ByteBuffer data;
+        final Snapshot checkpoint;
+        long first;
+        int count;
+
+        Chunk(int capacity) {
+            data = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+            checkpoint = null;
+        }
+
+        Chunk(Snapshot checkpoint, long instruction) {
+            data = null;
+            this.checkpoint = checkpoint;
+            first = instruction;
+        }
+    }
+}
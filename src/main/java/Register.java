@@ -1,20 +1,29 @@
-public enum Register implements Address {
-    AL(-1), AH(-2), AX(0),
-    BL(-3), BH(-4), BX(2),
-    CL(-5), CH(-6), CX(4),
-    DL(-7), DH(-8), DX(6),
-    SP(8),
-    BP(10),
-    SI(12),
-    DI(14),
-    CS(16),
-    DS(18),
-    SS(20),
-    ES(22);
+public enum Register {
+    AL(0, false), AH(4, false), AX(0, true),
+    BL(3, false), BH(7, false), BX(3, true),
+    CL(1, false), CH(5, false), CX(1, true),
+    DL(2, false), DH(6, false), DX(2, true),
+    SP(4, true),
+    BP(5, true),
+    SI(6, true),
+    DI(7, true),
+    CS(9, true),
+    DS(11, true),
+    SS(10, true),
+    ES(8, true);
 
-    final int offset;
+    private static final Register[] BYTE_REGISTERS = {AL, CL, DL, BL, AH, CH, DH, BH};
+    private static final Register[] WORD_REGISTERS = {AX, CX, DX, BX, SP, BP, SI, DI, ES, CS, SS, DS};
 
-    Register(int offset) {
-        this.offset = offset;
+    final int number;
+    final boolean isWide;
+
+    Register(int number, boolean isWide) {
+        this.number = number;
+        this.isWide = isWide;
+    }
+
+    public static Register of(int number, boolean isWide) {
+        return isWide ? WORD_REGISTERS[number] : BYTE_REGISTERS[number];
     }
 }
@@ -0,0 +1,221 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reconstructs the machine state after any recorded instruction from a {@link Recorder} log without executing
+ * anything. Opening a log only reads the frame headers, and a log that was cut short ends at its last complete frame.
+ * Seeking restores the nearest checkpoint at or before the target and applies deltas forward from there. Checkpoints
+ * only hold the pages that changed since the previous one, so restoring one applies the pages of all checkpoints since
+ * the current position, or since the start of the log when seeking backwards.
+ */
+public class Replay implements AutoCloseable {
+    private static final int PAGES = Emu8086.MEMORY_SIZE >> DecodeCache.PAGE_SHIFT;
+
+    private record Frame(byte type, long position, int length, long instruction) {
+    }
+
+    private final FileChannel channel;
+    private final List<Frame> frames = new ArrayList<>();
+    private final int[] checkpoints;
+    private final long end;
+    private final Emu8086 cpu;
+
+    private final byte[][] pages = new byte[PAGES][];
+    // Index in checkpoints of the last checkpoint applied to pages
+    private int pagesCheckpoint = -1;
+    private int nextFrame;
+    private ByteBuffer deltas;
+    private int remainingDeltas;
+
+    public Replay(Decoder decoder, Path log) throws IOException {
+        channel = FileChannel.open(log, StandardOpenOption.READ);
+        ByteBuffer header = ByteBuffer.allocate(Recorder.FRAME_HEADER_SIZE + Recorder.DELTAS_HEADER_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        List<Integer> checkpointFrames = new ArrayList<>();
+        long position = 0;
+        long last = 0;
+        long size = channel.size();
+        while (position + header.capacity() <= size) {
+            read(header.clear(), position);
+            byte type = header.get(0);
+            int length = header.getInt(1);
+            long instruction = header.getLong(Recorder.FRAME_HEADER_SIZE);
+            long payload = position + Recorder.FRAME_HEADER_SIZE;
+            if ((type != Recorder.CHECKPOINT && type != Recorder.DELTAS) || payload + length > size) {
+                break;
+            }
+            if (type == Recorder.CHECKPOINT) {
+                checkpointFrames.add(frames.size());
+                last = instruction;
+            } else {
+                last = instruction + header.getInt(Recorder.FRAME_HEADER_SIZE + 8);
+            }
+            frames.add(new Frame(type, payload, length, instruction));
+            position = payload + length;
+        }
+        if (checkpointFrames.isEmpty()) {
+            channel.close();
+            throw new IOException("Not a recording: " + log);
+        }
+        checkpoints = checkpointFrames.stream().mapToInt(Integer::intValue).toArray();
+        end = last;
+        cpu = new Emu8086(decoder);
+        seek(start());
+    }
+
+    public Emu8086 cpu() {
+        return cpu;
+    }
+
+    /**
+     * The instruction count when recording started.
+     */
+    public long start() {
+        return frames.get(checkpoints[0]).instruction();
+    }
+
+    /**
+     * The instruction count after the last recorded instruction.
+     */
+    public long end() {
+        return end;
+    }
+
+    public long position() {
+        return cpu.instructions;
+    }
+
+    /**
+     * Brings the CPU to the state it had when its instruction count was {@code instruction}.
+     */
+    public void seek(long instruction) throws IOException {
+        if (instruction < start() || instruction > end) {
+            throw new IllegalArgumentException("Instruction " + instruction + " is outside the recording ["
+                    + start() + ", " + end + "]");
+        }
+        int checkpoint = checkpoints.length - 1;
+        while (frames.get(checkpoints[checkpoint]).instruction() > instruction) {
+            checkpoint--;
+        }
+        if (instruction < position() || checkpoint > pagesCheckpoint) {
+            restore(checkpoint);
+        }
+        while (position() < instruction) {
+            while (remainingDeltas == 0) {
+                Frame frame = frames.get(nextFrame++);
+                if (frame.type() == Recorder.DELTAS) {
+                    deltas = read(frame);
+                    deltas.position(Recorder.DELTAS_HEADER_SIZE);
+                    remainingDeltas = deltas.getInt(8);
+                }
+            }
+            apply(deltas);
+            remainingDeltas--;
+        }
+    }
+
+    private void restore(int checkpoint) throws IOException {
+        if (checkpoint < pagesCheckpoint) {
+            Arrays.fill(pages, null);
+            pagesCheckpoint = -1;
+        }
+        ByteBuffer state = null;
+        for (int n = pagesCheckpoint + 1; n <= checkpoint; n++) {
+            state = read(frames.get(checkpoints[n]));
+            applyPages(state);
+        }
+        if (state == null) {
+            state = read(frames.get(checkpoints[checkpoint]));
+        }
+        pagesCheckpoint = checkpoint;
+
+        Frame frame = frames.get(checkpoints[checkpoint]);
+        state.position(8);
+        int[] registers = new int[12];
+        for (int number = 0; number < registers.length; number++) {
+            registers[number] = state.getShort() & 0xFFFF;
+        }
+        int flags = state.getShort() & 0xFFFF;
+        int ip = state.getShort() & 0xFFFF;
+        int programEnd = state.getInt();
+        boolean halted = state.get() != 0;
+        // Unchanged pages are shared with the previous restore, which lets the CPU skip copying them
+        cpu.restore(new Snapshot(registers, flags, ip, programEnd, halted, pages.clone()));
+        cpu.instructions = frame.instruction();
+        nextFrame = checkpoints[checkpoint] + 1;
+        deltas = null;
+        remainingDeltas = 0;
+    }
+
+    private void applyPages(ByteBuffer state) {
+        state.position(8 + 2 * 12 + 2 + 2 + 4 + 1);
+        int count = state.getInt();
+        for (int n = 0; n < count; n++) {
+            int page = state.getShort() & 0xFFFF;
+            if (state.get() != 0) {
+                byte[] contents = new byte[DecodeCache.PAGE_SIZE];
+                state.get(contents);
+                pages[page] = contents;
+            } else {
+                pages[page] = null;
+            }
+        }
+    }
+
+    private void apply(ByteBuffer delta) {
+        cpu.ip = delta.getShort() & 0xFFFF;
+        int mask = delta.getShort() & 0xFFFF;
+        for (int changed = mask & Recorder.REGISTER_MASK; changed != 0; changed &= changed - 1) {
+            cpu.setRegister(Integer.numberOfTrailingZeros(changed), true, delta.getShort() & 0xFFFF);
+        }
+        if ((mask & Recorder.LAZY_FLAGS) != 0) {
+            int flags = delta.getShort() & 0xFFFF;
+            int kind = delta.get() & 0xFF;
+            cpu.setFlagState(flags, kind & ~Recorder.LAZY_WIDE, delta.getInt(), delta.getInt(), delta.getInt(),
+                    (kind & Recorder.LAZY_WIDE) != 0);
+        } else if ((mask & Recorder.FLAGS_CHANGED) != 0) {
+            cpu.setFlags(delta.getShort() & 0xFFFF);
+        }
+        if ((mask & Recorder.HALTED) != 0) {
+            cpu.halt();
+        }
+        if ((mask & Recorder.MEMORY_WRITTEN) != 0) {
+            int runs = delta.getShort() & 0xFFFF;
+            ByteBuffer memory = cpu.memory();
+            for (int n = 0; n < runs; n++) {
+                int address = delta.getInt();
+                int length = delta.getInt();
+                memory.put(address, delta, delta.position(), length);
+                delta.position(delta.position() + length);
+                cpu.written(address, length);
+            }
+        }
+        cpu.instructions++;
+    }
+
+    private ByteBuffer read(Frame frame) throws IOException {
+        ByteBuffer payload = ByteBuffer.allocate(frame.length()).order(ByteOrder.LITTLE_ENDIAN);
+        read(payload, frame.position());
+        return payload;
+    }
+
+    private void read(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of recording");
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
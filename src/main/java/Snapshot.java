@@ -0,0 +1,28 @@
+/**
+ * Immutable machine state. Memory is stored per decode cache page, and pages that did not change since the snapshot
+ * the CPU was last synchronized with are shared with it. All-zero pages are stored as null. A CPU forked from a
+ * snapshot reads the page arrays in place until it first accesses them, so they must never be modified.
+ */
+public final class Snapshot {
+    static final Snapshot EMPTY = new Snapshot(new int[12], 0, 0, 0, false, new byte[0][]);
+
+    final int[] registers;
+    final int flags;
+    final int ip;
+    final int programEnd;
+    final boolean halted;
+    final byte[][] pages;
+
+    Snapshot(int[] registers, int flags, int ip, int programEnd, boolean halted, byte[][] pages) {
+        this.registers = registers;
+        this.flags = flags;
+        this.ip = ip;
+        this.programEnd = programEnd;
+        this.halted = halted;
+        this.pages = pages;
+    }
+
+    byte[] page(int page) {
+        return page < pages.length ? pages[page] : null;
+    }
+}
@@ -0,0 +1,150 @@
+import java.nio.ByteBuffer;
+
+/**
+ * MOVS, CMPS, SCAS, LODS and STOS (STDS in the instruction table), with or without a REP prefix. Repeated moves,
+ * stores, loads and forward REPE compares are performed as a single buffer operation when neither range wraps around
+ * its segment or the end of memory and a move does not overlap in the direction where copying element by element
+ * differs from a plain move. Everything else, including any string instruction while memory is watched, runs one
+ * element at a time.
+ */
+final class StringInstructions {
+    private static final int AX = 0;
+    private static final int CX = 1;
+    private static final int SI = 6;
+    private static final int DI = 7;
+
+    private StringInstructions() {
+    }
+
+    static void execute(Emu8086 cpu, DecodeState i) {
+        if (!i.isRepeat) {
+            step(cpu, i);
+            return;
+        }
+
+        int count = cpu.getRegister(CX, true);
+        if (count == 0 || bulk(cpu, i, count)) {
+            return;
+        }
+        boolean compares = i.opcode == Opcode.CMPS || i.opcode == Opcode.SCAS;
+        do {
+            step(cpu, i);
+            count = (count - 1) & 0xFFFF;
+            cpu.setRegister(CX, true, count);
+        } while (count != 0 && (!compares || cpu.getFlag(Flag.ZERO) == i.isWhileZero));
+    }
+
+    private static void step(Emu8086 cpu, DecodeState i) {
+        boolean isWide = i.isWide;
+        int delta = cpu.getFlag(Flag.DIRECTION) ? -(isWide ? 2 : 1) : (isWide ? 2 : 1);
+        int si = cpu.getRegister(SI, true);
+        int di = cpu.getRegister(DI, true);
+        int source = (cpu.segmentBases[i.segment] + si) & Emu8086.ADDRESS_MASK;
+        int destination = (cpu.segmentBases[DecodeState.ES] + di) & Emu8086.ADDRESS_MASK;
+        switch (i.opcode) {
+            case MOVS -> cpu.writeWatched(destination, isWide, cpu.readWatched(source, isWide));
+            case CMPS -> cpu.alu(Alu.SUB, cpu.readWatched(source, isWide), cpu.readWatched(destination, isWide), isWide);
+            case SCAS -> cpu.alu(Alu.SUB, cpu.getRegister(AX, isWide), cpu.readWatched(destination, isWide), isWide);
+            case LODS -> cpu.setRegister(AX, isWide, cpu.readWatched(source, isWide));
+            case STDS -> cpu.writeWatched(destination, isWide, cpu.getRegister(AX, isWide));
+            default -> throw new IllegalArgumentException(i.opcode.toString());
+        }
+        if (i.opcode != Opcode.STDS && i.opcode != Opcode.SCAS) {
+            cpu.setRegister(SI, true, si + delta);
+        }
+        if (i.opcode != Opcode.LODS) {
+            cpu.setRegister(DI, true, di + delta);
+        }
+    }
+
+    private static boolean bulk(Emu8086 cpu, DecodeState i, int count) {
+        Opcode opcode = i.opcode;
+        boolean down = cpu.getFlag(Flag.DIRECTION);
+        // Watched memory is only seen through the element accessors
+        if (cpu.watchpoints != null || opcode == Opcode.SCAS || (opcode == Opcode.CMPS && (down || !i.isWhileZero))) {
+            return false;
+        }
+
+        int size = i.isWide ? 2 : 1;
+        int bytes = count * size;
+        int si = cpu.getRegister(SI, true);
+        int di = cpu.getRegister(DI, true);
+        int siLow = down ? si - bytes + size : si;
+        int diLow = down ? di - bytes + size : di;
+        boolean readsSource = opcode != Opcode.STDS;
+        boolean writesDestination = opcode != Opcode.LODS;
+        int source = cpu.segmentBases[i.segment] + siLow;
+        int destination = cpu.segmentBases[DecodeState.ES] + diLow;
+        if (readsSource && !fits(siLow, source, bytes)) {
+            return false;
+        }
+        if (writesDestination && !fits(diLow, destination, bytes)) {
+            return false;
+        }
+
+        if (readsSource) {
+            cpu.unshare(source, bytes);
+        }
+        if (writesDestination) {
+            cpu.unshare(destination, bytes);
+        }
+        ByteBuffer memory = cpu.memory();
+        int executed = count;
+        switch (opcode) {
+            case MOVS -> {
+                boolean overlaps = down
+                        ? destination < source && destination + bytes > source
+                        : destination > source && destination < source + bytes;
+                if (overlaps) {
+                    return false;
+                }
+                memory.put(destination, memory, source, bytes);
+                cpu.written(destination, bytes);
+            }
+            case STDS -> {
+                fill(memory, destination, bytes, cpu.getRegister(AX, i.isWide), i.isWide);
+                cpu.written(destination, bytes);
+            }
+            case LODS -> cpu.setRegister(AX, i.isWide, cpu.getMemory(down ? source : source + bytes - size, i.isWide));
+            case CMPS -> {
+                int mismatch = memory.slice(source, bytes).mismatch(memory.slice(destination, bytes));
+                executed = mismatch < 0 ? count : mismatch / size + 1;
+                int last = (executed - 1) * size;
+                cpu.alu(Alu.SUB, cpu.getMemory(source + last, i.isWide), cpu.getMemory(destination + last, i.isWide), i.isWide);
+            }
+            default -> {
+                return false;
+            }
+        }
+
+        int advance = down ? -executed * size : executed * size;
+        if (readsSource) {
+            cpu.setRegister(SI, true, si + advance);
+        }
+        if (writesDestination) {
+            cpu.setRegister(DI, true, di + advance);
+        }
+        cpu.setRegister(CX, true, count - executed);
+        return true;
+    }
+
+    private static boolean fits(int offset, int address, int bytes) {
+        return offset >= 0 && offset + bytes <= 0x10000 && address + bytes <= Emu8086.MEMORY_SIZE;
+    }
+
+    private static void fill(ByteBuffer memory, int address, int bytes, int value, boolean isWide) {
+        int filled;
+        if (isWide) {
+            memory.putChar(address, (char) value);
+            filled = 2;
+        } else {
+            memory.put(address, (byte) value);
+            filled = 1;
+        }
+        while (filled < bytes) {
+            int length = Math.min(filled, bytes - filled);
+            memory.put(address + filled, memory, address, length);
+            filled += length;
+        }
+    }
+}
@@ -0,0 +1,343 @@
+import java.io.IOException;
+
+public class ThreadedCode {
+    private static final int REG_IMMEDIATE = 0;
+    private static final int RM_REGISTER_IMMEDIATE = 1;
+    private static final int MEMORY_IMMEDIATE = 2;
+    private static final int REG_RM_REGISTER = 3;
+    private static final int RM_REGISTER_REG = 4;
+    private static final int REG_MEMORY = 5;
+    private static final int MEMORY_REG = 6;
+
+    private static final Handler INTERPRET = (cpu, i) -> cpu.interpret(i);
+
+    private ThreadedCode() {
+    }
+
+    public static Handler bind(DecodeState instruction) {
+        return switch (instruction.opcode) {
+            case MOV -> mov(form(instruction));
+            case ADD -> arithmetic(form(instruction), Alu.ADD);
+            case ADC -> arithmetic(form(instruction), Alu.ADC);
+            case SUB -> arithmetic(form(instruction), Alu.SUB);
+            case SBB -> arithmetic(form(instruction), Alu.SBB);
+            case CMP -> compare(form(instruction), Alu.SUB);
+            case AND -> arithmetic(form(instruction), Alu.AND);
+            case OR -> arithmetic(form(instruction), Alu.OR);
+            case XOR -> arithmetic(form(instruction), Alu.XOR);
+            case TEST -> compare(form(instruction), Alu.AND);
+            case INC -> unary(form(instruction), Alu.INC);
+            case DEC -> unary(form(instruction), Alu.DEC);
+            case NEG -> unary(form(instruction), Alu.NEG);
+            case NOT -> unary(form(instruction), Alu.NOT);
+            case JE -> (cpu, i) -> {
+                if (cpu.getFlag(Flag.ZERO)) cpu.jumpRelative(i.immediate);
+            };
+            case JNE -> (cpu, i) -> {
+                if (!cpu.getFlag(Flag.ZERO)) cpu.jumpRelative(i.immediate);
+            };
+            case JL -> (cpu, i) -> {
+                if (cpu.getFlag(Flag.SIGN) != cpu.getFlag(Flag.OVERFLOW)) cpu.jumpRelative(i.immediate);
+            };
+            case JNL -> (cpu, i) -> {
+                if (cpu.getFlag(Flag.SIGN) == cpu.getFlag(Flag.OVERFLOW)) cpu.jumpRelative(i.immediate);
+            };
+            case JLE -> (cpu, i) -> {
+                if (cpu.getFlag(Flag.ZERO) || cpu.getFlag(Flag.SIGN) != cpu.getFlag(Flag.OVERFLOW)) cpu.jumpRelative(i.immediate);
+            };
+            case JNLE -> (cpu, i) -> {
+                if (!cpu.getFlag(Flag.ZERO) && cpu.getFlag(Flag.SIGN) == cpu.getFlag(Flag.OVERFLOW)) cpu.jumpRelative(i.immediate);
+            };
+            case JB -> (cpu, i) -> {
+                if (cpu.getFlag(Flag.CARRY)) cpu.jumpRelative(i.immediate);
+            };
+            case JNB -> (cpu, i) -> {
+                if (!cpu.getFlag(Flag.CARRY)) cpu.jumpRelative(i.immediate);
+            };
+            case JBE -> (cpu, i) -> {
+                if (cpu.getFlag(Flag.CARRY) || cpu.getFlag(Flag.ZERO)) cpu.jumpRelative(i.immediate);
+            };
+            case JNBE -> (cpu, i) -> {
+                if (!cpu.getFlag(Flag.CARRY) && !cpu.getFlag(Flag.ZERO)) cpu.jumpRelative(i.immediate);
+            };
+            case JP -> (cpu, i) -> {
+                if (cpu.getFlag(Flag.PARITY)) cpu.jumpRelative(i.immediate);
+            };
+            case JNP -> (cpu, i) -> {
+                if (!cpu.getFlag(Flag.PARITY)) cpu.jumpRelative(i.immediate);
+            };
+            case JO -> (cpu, i) -> {
+                if (cpu.getFlag(Flag.OVERFLOW)) cpu.jumpRelative(i.immediate);
+            };
+            case JNO -> (cpu, i) -> {
+                if (!cpu.getFlag(Flag.OVERFLOW)) cpu.jumpRelative(i.immediate);
+            };
+            case JS -> (cpu, i) -> {
+                if (cpu.getFlag(Flag.SIGN)) cpu.jumpRelative(i.immediate);
+            };
+            case JNS -> (cpu, i) -> {
+                if (!cpu.getFlag(Flag.SIGN)) cpu.jumpRelative(i.immediate);
+            };
+            case LOOP -> (cpu, i) -> {
+                if (cpu.decrementCX() != 0) cpu.jumpRelative(i.immediate);
+            };
+            case LOOPZ -> (cpu, i) -> {
+                if (cpu.decrementCX() != 0 && cpu.getFlag(Flag.ZERO)) cpu.jumpRelative(i.immediate);
+            };
+            case LOOPNZ -> (cpu, i) -> {
+                if (cpu.decrementCX() != 0 && !cpu.getFlag(Flag.ZERO)) cpu.jumpRelative(i.immediate);
+            };
+            case JCXZ -> (cpu, i) -> {
+                if (cpu.get(Register.CX) == 0) cpu.jumpRelative(i.immediate);
+            };
+            case JMP -> (instruction.operands & DecodeState.RM_OPERAND) == 0 && !instruction.isFar
+                    ? (cpu, i) -> cpu.jumpRelative(i.immediate)
+                    : INTERPRET;
+            case MOVS, CMPS, SCAS, LODS, STDS -> StringInstructions::execute;
+            case HLT -> (cpu, i) -> cpu.halt();
+            default -> INTERPRET;
+        };
+    }
+
+    /**
+     * Returns the handler for uninstrumented execution: a fused pair if possible, otherwise a variant that skips
+     * recording flags nobody reads, otherwise the regular handler.
+     */
+    static Handler fast(Emu8086 cpu, int address, DecodeState instruction) {
+        Handler handler = instruction.handler;
+        Handler fused = fuse(cpu, address, instruction);
+        if (fused != handler) {
+            instruction.isFused = true;
+            return fused;
+        }
+
+        boolean hasDeadFlagsVariant = switch (instruction.opcode) {
+            case ADD, SUB, CMP, AND, OR, XOR, TEST -> true;
+            default -> false;
+        };
+        if (!hasDeadFlagsVariant) {
+            return handler;
+        }
+        if (instruction.liveFlags == FlagLiveness.UNKNOWN) {
+            FlagLiveness.analyze(cpu, address);
+        }
+        if ((instruction.liveFlags & Alu.ARITHMETIC_FLAGS) != 0) {
+            return handler;
+        }
+        return switch (instruction.opcode) {
+            case ADD -> arithmeticWithoutFlags(form(instruction), Alu.ADD);
+            case SUB -> arithmeticWithoutFlags(form(instruction), Alu.SUB);
+            case AND -> arithmeticWithoutFlags(form(instruction), Alu.AND);
+            case OR -> arithmeticWithoutFlags(form(instruction), Alu.OR);
+            case XOR -> arithmeticWithoutFlags(form(instruction), Alu.XOR);
+            // A compare whose flags are dead has no effect
+            default -> (c, i) -> {
+            };
+        };
+    }
+
+    /**
+     * Returns a handler that executes a CMP or SUB together with the conditional jump that follows it, deciding the
+     * branch from the subtraction operands instead of materializing flags. TEST and a register DEC are fused with the
+     * jumps that only depend on the zero and sign of their result. Jumps to the second instruction still execute its
+     * own unfused entry. Pairs are only fused when they lie on a single decode cache page, so any write that changes
+     * the jump also invalidates the fused entry.
+     */
+    static Handler fuse(Emu8086 cpu, int address, DecodeState first) {
+        Handler handler = first.handler;
+        boolean writesMemory = (first.operands & DecodeState.RM_MEMORY) != 0 && !first.isToReg;
+        boolean compare = first.opcode == Opcode.CMP || (first.opcode == Opcode.SUB && !writesMemory);
+        boolean test = first.opcode == Opcode.TEST;
+        boolean decrement = first.opcode == Opcode.DEC && (first.operands & DecodeState.RM_MEMORY) == 0;
+        if (!compare && !test && !decrement) {
+            return handler;
+        }
+
+        int nextAddress = (address + first.length) & Emu8086.ADDRESS_MASK;
+        DecodeState next;
+        try {
+            next = cpu.decodeCache().get(cpu.memory(), nextAddress);
+        } catch (IOException e) {
+            return handler;
+        }
+        if ((address >> DecodeCache.PAGE_SHIFT) != ((nextAddress + next.length - 1) >> DecodeCache.PAGE_SHIFT)) {
+            return handler;
+        }
+
+        Opcode condition = compare ? next.opcode : switch (next.opcode) {
+            case JE, JNE, JS, JNS -> next.opcode;
+            // TEST clears OF, so the signed conditions reduce to the sign
+            case JL -> test ? Opcode.JS : null;
+            case JNL -> test ? Opcode.JNS : null;
+            default -> null;
+        };
+        if (condition == null) {
+            return handler;
+        }
+
+        int length = next.length;
+        int displacement = next.immediate;
+        return switch (condition) {
+            case JE -> (c, i) -> {
+                handler.execute(c, i);
+                c.fusedBranch(length, displacement, c.compareEqual());
+            };
+            case JNE -> (c, i) -> {
+                handler.execute(c, i);
+                c.fusedBranch(length, displacement, !c.compareEqual());
+            };
+            case JB -> (c, i) -> {
+                handler.execute(c, i);
+                c.fusedBranch(length, displacement, c.compareBelow());
+            };
+            case JNB -> (c, i) -> {
+                handler.execute(c, i);
+                c.fusedBranch(length, displacement, !c.compareBelow());
+            };
+            case JBE -> (c, i) -> {
+                handler.execute(c, i);
+                c.fusedBranch(length, displacement, c.compareBelow() || c.compareEqual());
+            };
+            case JNBE -> (c, i) -> {
+                handler.execute(c, i);
+                c.fusedBranch(length, displacement, !c.compareBelow() && !c.compareEqual());
+            };
+            case JL -> (c, i) -> {
+                handler.execute(c, i);
+                c.fusedBranch(length, displacement, c.compareLess());
+            };
+            case JNL -> (c, i) -> {
+                handler.execute(c, i);
+                c.fusedBranch(length, displacement, !c.compareLess());
+            };
+            case JLE -> (c, i) -> {
+                handler.execute(c, i);
+                c.fusedBranch(length, displacement, c.compareLess() || c.compareEqual());
+            };
+            case JNLE -> (c, i) -> {
+                handler.execute(c, i);
+                c.fusedBranch(length, displacement, !c.compareLess() && !c.compareEqual());
+            };
+            case JS -> (c, i) -> {
+                handler.execute(c, i);
+                c.fusedBranch(length, displacement, c.compareSign());
+            };
+            case JNS -> (c, i) -> {
+                handler.execute(c, i);
+                c.fusedBranch(length, displacement, !c.compareSign());
+            };
+            default -> handler;
+        };
+    }
+
+    private static int form(DecodeState instruction) {
+        int operands = instruction.operands;
+        if ((operands & DecodeState.RM_OPERAND) == 0) {
+            return REG_IMMEDIATE;
+        } else if ((operands & DecodeState.REG_REGISTER) == 0) {
+            return (operands & DecodeState.RM_MEMORY) != 0 ? MEMORY_IMMEDIATE : RM_REGISTER_IMMEDIATE;
+        } else if ((operands & DecodeState.RM_MEMORY) != 0) {
+            return instruction.isToReg ? REG_MEMORY : MEMORY_REG;
+        } else {
+            return instruction.isToReg ? REG_RM_REGISTER : RM_REGISTER_REG;
+        }
+    }
+
+    private static Handler mov(int form) {
+        return switch (form) {
+            case REG_IMMEDIATE -> (cpu, i) -> cpu.setRegister(i.reg, i.isWide, i.immediate);
+            case RM_REGISTER_IMMEDIATE -> (cpu, i) -> cpu.setRegister(i.rm, i.isWide, i.immediate);
+            case MEMORY_IMMEDIATE -> (cpu, i) -> cpu.setMemory(cpu.effectiveAddress(i), i.isWide, i.immediate);
+            case REG_RM_REGISTER -> (cpu, i) -> cpu.setRegister(i.reg, i.isWide, cpu.getRegister(i.rm, i.isWide));
+            case RM_REGISTER_REG -> (cpu, i) -> cpu.setRegister(i.rm, i.isWide, cpu.getRegister(i.reg, i.isWide));
+            case REG_MEMORY -> (cpu, i) -> cpu.setRegister(i.reg, i.isWide, cpu.getMemory(cpu.effectiveAddress(i), i.isWide));
+            case MEMORY_REG -> (cpu, i) -> cpu.setMemory(cpu.effectiveAddress(i), i.isWide, cpu.getRegister(i.reg, i.isWide));
+            default -> INTERPRET;
+        };
+    }
+
+    private static Handler arithmetic(int form, int kind) {
+        return switch (form) {
+            case REG_IMMEDIATE -> (cpu, i) -> cpu.setRegister(i.reg, i.isWide,
+                    cpu.alu(kind, cpu.getRegister(i.reg, i.isWide), i.immediate, i.isWide));
+            case RM_REGISTER_IMMEDIATE -> (cpu, i) -> cpu.setRegister(i.rm, i.isWide,
+                    cpu.alu(kind, cpu.getRegister(i.rm, i.isWide), i.immediate, i.isWide));
+            case MEMORY_IMMEDIATE -> (cpu, i) -> {
+                int ea = cpu.effectiveAddress(i);
+                cpu.setMemory(ea, i.isWide, cpu.alu(kind, cpu.getMemory(ea, i.isWide), i.immediate, i.isWide));
+            };
+            case REG_RM_REGISTER -> (cpu, i) -> cpu.setRegister(i.reg, i.isWide,
+                    cpu.alu(kind, cpu.getRegister(i.reg, i.isWide), cpu.getRegister(i.rm, i.isWide), i.isWide));
+            case RM_REGISTER_REG -> (cpu, i) -> cpu.setRegister(i.rm, i.isWide,
+                    cpu.alu(kind, cpu.getRegister(i.rm, i.isWide), cpu.getRegister(i.reg, i.isWide), i.isWide));
+            case REG_MEMORY -> (cpu, i) -> cpu.setRegister(i.reg, i.isWide,
+                    cpu.alu(kind, cpu.getRegister(i.reg, i.isWide), cpu.getMemory(cpu.effectiveAddress(i), i.isWide), i.isWide));
+            case MEMORY_REG -> (cpu, i) -> {
+                int ea = cpu.effectiveAddress(i);
+                cpu.setMemory(ea, i.isWide, cpu.alu(kind, cpu.getMemory(ea, i.isWide), cpu.getRegister(i.reg, i.isWide), i.isWide));
+            };
+            default -> INTERPRET;
+        };
+    }
+
+    private static Handler arithmeticWithoutFlags(int form, int kind) {
+        return switch (form) {
+            case REG_IMMEDIATE -> (cpu, i) -> cpu.setRegister(i.reg, i.isWide,
+                    result(kind, cpu.getRegister(i.reg, i.isWide), i.immediate));
+            case RM_REGISTER_IMMEDIATE -> (cpu, i) -> cpu.setRegister(i.rm, i.isWide,
+                    result(kind, cpu.getRegister(i.rm, i.isWide), i.immediate));
+            case MEMORY_IMMEDIATE -> (cpu, i) -> {
+                int ea = cpu.effectiveAddress(i);
+                cpu.setMemory(ea, i.isWide, result(kind, cpu.getMemory(ea, i.isWide), i.immediate));
+            };
+            case REG_RM_REGISTER -> (cpu, i) -> cpu.setRegister(i.reg, i.isWide,
+                    result(kind, cpu.getRegister(i.reg, i.isWide), cpu.getRegister(i.rm, i.isWide)));
+            case RM_REGISTER_REG -> (cpu, i) -> cpu.setRegister(i.rm, i.isWide,
+                    result(kind, cpu.getRegister(i.rm, i.isWide), cpu.getRegister(i.reg, i.isWide)));
+            case REG_MEMORY -> (cpu, i) -> cpu.setRegister(i.reg, i.isWide,
+                    result(kind, cpu.getRegister(i.reg, i.isWide), cpu.getMemory(cpu.effectiveAddress(i), i.isWide)));
+            case MEMORY_REG -> (cpu, i) -> {
+                int ea = cpu.effectiveAddress(i);
+                cpu.setMemory(ea, i.isWide, result(kind, cpu.getMemory(ea, i.isWide), cpu.getRegister(i.reg, i.isWide)));
+            };
+            default -> INTERPRET;
+        };
+    }
+
+    private static int result(int operation, int op1, int op2) {
+        return switch (operation) {
+            case Alu.ADD -> op1 + op2;
+            case Alu.SUB -> op1 - op2;
+            case Alu.AND -> op1 & op2;
+            case Alu.OR -> op1 | op2;
+            default -> op1 ^ op2;
+        };
+    }
+
+    private static Handler unary(int form, int operation) {
+        return switch (form) {
+            case REG_IMMEDIATE -> (cpu, i) -> cpu.setRegister(i.reg, i.isWide,
+                    cpu.unary(operation, cpu.getRegister(i.reg, i.isWide), i.isWide));
+            case RM_REGISTER_IMMEDIATE -> (cpu, i) -> cpu.setRegister(i.rm, i.isWide,
+                    cpu.unary(operation, cpu.getRegister(i.rm, i.isWide), i.isWide));
+            case MEMORY_IMMEDIATE -> (cpu, i) -> {
+                int ea = cpu.effectiveAddress(i);
+                cpu.setMemory(ea, i.isWide, cpu.unary(operation, cpu.getMemory(ea, i.isWide), i.isWide));
+            };
+            default -> INTERPRET;
+        };
+    }
+
+    private static Handler compare(int form, int kind) {
+        return switch (form) {
+            case REG_IMMEDIATE -> (cpu, i) -> cpu.alu(kind, cpu.getRegister(i.reg, i.isWide), i.immediate, i.isWide);
+            case RM_REGISTER_IMMEDIATE -> (cpu, i) -> cpu.alu(kind, cpu.getRegister(i.rm, i.isWide), i.immediate, i.isWide);
+            case MEMORY_IMMEDIATE -> (cpu, i) -> cpu.alu(kind, cpu.getMemory(cpu.effectiveAddress(i), i.isWide), i.immediate, i.isWide);
+            case REG_RM_REGISTER -> (cpu, i) -> cpu.alu(kind, cpu.getRegister(i.reg, i.isWide), cpu.getRegister(i.rm, i.isWide), i.isWide);
+            case RM_REGISTER_REG -> (cpu, i) -> cpu.alu(kind, cpu.getRegister(i.rm, i.isWide), cpu.getRegister(i.reg, i.isWide), i.isWide);
+            case REG_MEMORY -> (cpu, i) -> cpu.alu(kind, cpu.getRegister(i.reg, i.isWide), cpu.getMemory(cpu.effectiveAddress(i), i.isWide), i.isWide);
+            case MEMORY_REG -> (cpu, i) -> cpu.alu(kind, cpu.getMemory(cpu.effectiveAddress(i), i.isWide), cpu.getRegister(i.reg, i.isWide), i.isWide);
+            default -> INTERPRET;
+        };
+    }
+}
@@ -0,0 +1,12 @@
+public enum TraceLevel {
+    OFF(0),
+    DISASSEMBLY(Tracer.INSTRUCTION_SIZE),
+    REGISTERS(Tracer.INSTRUCTION_SIZE + Tracer.DELTA_SIZE),
+    FULL(Tracer.INSTRUCTION_SIZE + Tracer.DELTA_SIZE + Tracer.STATE_SIZE);
+
+    final int recordSize;
+
+    TraceLevel(int recordSize) {
+        this.recordSize = recordSize;
+    }
+}
@@ -0,0 +1,329 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Collects executed instructions as fixed size int records in a small set of preallocated chunks. Full chunks
+ * are handed to a writer thread that formats them and writes the text in large blocks, so the execution thread
+ * never formats anything.
+ */
+public class Tracer implements AutoCloseable {
+    static final int INSTRUCTION_SIZE = 8;
+    static final int DELTA_SIZE = 1 + 2 * 12;
+    static final int STATE_SIZE = 2;
+
+    private static final int CHUNK_RECORDS = 1024;
+    private static final int CHUNKS = 4;
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    private static final int WIDE = 0x100;
+    private static final int TO_REG = 0x200;
+    private static final int SEGMENT_SHIFT = 10;
+    private static final int REPEAT = 0x1000;
+    private static final int WHILE_ZERO = 0x2000;
+    private static final int FAR = 0x4000;
+
+    private static final Opcode[] OPCODES = Opcode.values();
+    private static final EffectiveAddress[] EFFECTIVE_ADDRESSES = EffectiveAddress.values();
+    private static final Register[] REGISTERS = Register.values();
+    private static final Flag[] FLAGS = Flag.values();
+    private static final String[] SEGMENTS = {"ES", "CS", "SS", "DS"};
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final TraceLevel level;
+    private final int recordSize;
+    private final int[] previousRegisters = new int[12];
+    private final BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(CHUNKS);
+    private final BlockingQueue<Chunk> full = new ArrayBlockingQueue<>(CHUNKS + 1);
+    private final Thread writer;
+    private final OutputStream out;
+    private final StringBuilder text = new StringBuilder(OUTPUT_BUFFER_SIZE);
+    private volatile IOException failure;
+    private long clocks;
+    private Chunk chunk;
+
+    public Tracer(TraceLevel level, OutputStream out) {
+        if (level == TraceLevel.OFF) {
+            throw new IllegalArgumentException("Tracing is off");
+        }
+        this.level = level;
+        this.recordSize = level.recordSize;
+        this.out = out;
+        for (int i = 0; i < CHUNKS; i++) {
+            free.add(new Chunk(CHUNK_RECORDS * recordSize));
+        }
+        chunk = free.remove();
+        writer = new Thread(this::write, "trace-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    void track(int[] registers) {
+        System.arraycopy(registers, 0, previousRegisters, 0, previousRegisters.length);
+    }
+
+    void record(Emu8086 cpu, int address, DecodeState instruction, int clocks) {
+        int[] data = chunk.data;
+        int p = chunk.size;
+        data[p] = address;
+        data[p + 1] = instruction.opcode.ordinal();
+        data[p + 2] = instruction.operands | (instruction.isWide ? WIDE : 0) | (instruction.isToReg ? TO_REG : 0)
+                | (instruction.segment << SEGMENT_SHIFT)
+                | (instruction.isRepeat ? REPEAT : 0) | (instruction.isWhileZero ? WHILE_ZERO : 0)
+                | (instruction.isFar ? FAR : 0);
+        data[p + 3] = instruction.reg;
+        data[p + 4] = instruction.rm;
+        data[p + 5] = instruction.displacement;
+        data[p + 6] = instruction.immediate;
+        data[p + 7] = clocks;
+
+        if (level != TraceLevel.DISASSEMBLY) {
+            int[] registers = cpu.registers;
+            int changed = 0;
+            for (int dirty = cpu.dirtyRegisters; dirty != 0; dirty &= dirty - 1) {
+                int number = Integer.numberOfTrailingZeros(dirty);
+                int previous = previousRegisters[number];
+                int current = registers[number];
+                if (previous != current) {
+                    changed |= 1 << number;
+                    data[p + INSTRUCTION_SIZE + 1 + number] = previous;
+                    data[p + INSTRUCTION_SIZE + 13 + number] = current;
+                    previousRegisters[number] = current;
+                }
+            }
+            data[p + INSTRUCTION_SIZE] = changed;
+
+            if (level == TraceLevel.FULL) {
+                System.arraycopy(registers, 0, data, p + INSTRUCTION_SIZE + 13, registers.length);
+                data[p + INSTRUCTION_SIZE + DELTA_SIZE] = cpu.ip;
+                data[p + INSTRUCTION_SIZE + DELTA_SIZE + 1] = cpu.getFlags();
+            }
+        }
+
+        chunk.size = p + recordSize;
+        if (chunk.size == data.length) {
+            submit();
+        }
+    }
+
+    /**
+     * Hands the current chunk to the writer. Fails instead of waiting for a free chunk once the writer has died,
+     * dropping the records of the current chunk.
+     */
+    private void submit() {
+        try {
+            if (failure == null) {
+                full.put(chunk);
+                Chunk next = free.take();
+                if (next != Chunk.END) {
+                    chunk = next;
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+        chunk.size = 0;
+        throw new UncheckedIOException(failure);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (chunk.size > 0) {
+            try {
+                submit();
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        full.add(Chunk.END);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void write() {
+        try {
+            while (true) {
+                Chunk next = full.take();
+                if (next == Chunk.END) {
+                    break;
+                }
+                for (int p = 0; p < next.size; p += recordSize) {
+                    format(next.data, p);
+                    if (text.length() >= OUTPUT_BUFFER_SIZE) {
+                        drain();
+                    }
+                }
+                next.size = 0;
+                free.add(next);
+            }
+            drain();
+            out.flush();
+        } catch (IOException e) {
+            failure = e;
+            // Wakes an execution thread waiting for a chunk the writer will never free.
+            free.add(Chunk.END);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain() throws IOException {
+        out.write(text.toString().getBytes(StandardCharsets.US_ASCII));
+        text.setLength(0);
+    }
+
+    private void format(int[] data, int p) {
+        Opcode opcode = OPCODES[data[p + 1]];
+        int operands = data[p + 2];
+        boolean isWide = (operands & WIDE) != 0;
+        if ((operands & REPEAT) != 0) {
+            boolean compares = opcode == Opcode.CMPS || opcode == Opcode.SCAS;
+            text.append(!compares ? "REP " : (operands & WHILE_ZERO) != 0 ? "REPE " : "REPNE ");
+        }
+        text.append(opcode);
+        switch (opcode) {
+            case MOVS, CMPS, SCAS, LODS, STDS -> text.append(isWide ? 'W' : 'B');
+            case JE, JNE, JL, JNL, JLE, JNLE, JB, JNB, JBE, JNBE, JP, JNP, JO, JNO, JS, JNS, LOOP, LOOPZ, LOOPNZ, JCXZ ->
+                    text.append(' ').append(data[p + 6]);
+            case JMP, CALL -> {
+                if ((operands & FAR) != 0) {
+                    text.append(String.format(" 0x%04x:0x%04x", data[p + 5], data[p + 6]));
+                } else if ((operands & DecodeState.RM_OPERAND) == 0) {
+                    text.append(' ').append(data[p + 6]);
+                } else {
+                    text.append(' ');
+                    formatRm(data, p, operands, isWide);
+                }
+            }
+            case PUSH, POP -> {
+                text.append(' ');
+                if ((operands & DecodeState.REG_REGISTER) == 0) {
+                    formatRm(data, p, operands, isWide);
+                } else {
+                    text.append(Register.of(data[p + 3], isWide));
+                }
+            }
+            default -> {
+                if ((operands & (DecodeState.REG_REGISTER | DecodeState.RM_OPERAND)) != 0) {
+                    formatTwoOperand(data, p, operands, isWide);
+                }
+            }
+        }
+        int instructionClocks = data[p + 7];
+        if (instructionClocks >= 0) {
+            clocks += instructionClocks;
+            text.append(" ; clocks: +").append(instructionClocks).append(" = ").append(clocks);
+        }
+        text.append('\n');
+
+        if (level == TraceLevel.DISASSEMBLY) {
+            return;
+        }
+        int changed = data[p + INSTRUCTION_SIZE];
+        for (Register register : REGISTERS) {
+            if (register.isWide && (changed & (1 << register.number)) != 0) {
+                text.append(register).append(": ");
+                hex(data[p + INSTRUCTION_SIZE + 1 + register.number]);
+                text.append(" -> ");
+                hex(data[p + INSTRUCTION_SIZE + 13 + register.number]);
+                text.append('\n');
+            }
+        }
+
+        if (level == TraceLevel.FULL) {
+            for (Register register : REGISTERS) {
+                if (register.isWide) {
+                    text.append(register).append(": ");
+                    hex(data[p + INSTRUCTION_SIZE + 13 + register.number]);
+                    text.append(' ');
+                }
+            }
+            text.append("IP: ");
+            hex(data[p + INSTRUCTION_SIZE + DELTA_SIZE]);
+            text.append(" flags: ");
+            int flags = data[p + INSTRUCTION_SIZE + DELTA_SIZE + 1];
+            for (Flag flag : FLAGS) {
+                if ((flags & flag.setTestMask) != 0) {
+                    text.append(flag.name().charAt(0));
+                }
+            }
+            text.append('\n');
+        }
+    }
+
+    private void formatTwoOperand(int[] data, int p, int operands, boolean isWide) {
+        text.append(' ');
+        if ((operands & DecodeState.RM_OPERAND) == 0) {
+            text.append(Register.of(data[p + 3], isWide)).append(", ").append(data[p + 6]);
+        } else if ((operands & DecodeState.REG_REGISTER) == 0) {
+            formatRm(data, p, operands, isWide);
+            text.append(", ");
+            if ((operands & DecodeState.RM_MEMORY) != 0) {
+                text.append(isWide ? "word " : "byte ");
+            }
+            text.append(data[p + 6]);
+        } else if ((operands & TO_REG) != 0) {
+            text.append(Register.of(data[p + 3], isWide)).append(", ");
+            formatRm(data, p, operands, isWide);
+        } else {
+            formatRm(data, p, operands, isWide);
+            text.append(", ").append(Register.of(data[p + 3], isWide));
+        }
+    }
+
+    private void formatRm(int[] data, int p, int operands, boolean isWide) {
+        int rm = data[p + 4];
+        if ((operands & DecodeState.RM_MEMORY) == 0) {
+            text.append(Register.of(rm, isWide));
+            return;
+        }
+
+        EffectiveAddress mode = EFFECTIVE_ADDRESSES[rm];
+        int disp = data[p + 5];
+        int segment = (operands >> SEGMENT_SHIFT) & 3;
+        boolean isStackMode = mode == EffectiveAddress.BP_SI || mode == EffectiveAddress.BP_DI || mode == EffectiveAddress.BP;
+        if (segment != (isStackMode ? DecodeState.SS : DecodeState.DS)) {
+            text.append(SEGMENTS[segment]).append(':');
+        }
+        text.append('[');
+        if (mode == EffectiveAddress.DIRECT) {
+            text.append(disp);
+        } else {
+            text.append(mode);
+            if (disp != 0) {
+                text.append(disp < 0 ? " - " : " + ").append(Math.abs(disp));
+            }
+        }
+        text.append(']');
+    }
+
+    private void hex(int value) {
+        text.append("0x")
+                .append(HEX[(value >> 12) & 0xF])
+                .append(HEX[(value >> 8) & 0xF])
+                .append(HEX[(value >> 4) & 0xF])
+                .append(HEX[value & 0xF]);
+    }
+
+    private static final class Chunk {
+        static final Chunk END = new Chunk(0);
+
+        final int[] data;
+        int size;
+
+        Chunk(int capacity) {
+            data = new int[capacity];
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Watched memory bytes for the debugger, kept as separate read and write bitmaps. Every page that holds a watched byte
+ * is flagged, so memory accesses outside those pages cost a single array lookup. The first access that hits a watched
+ * byte is remembered until {@link #clearHit()}.
+ */
+final class Watchpoints {
+    static final int READ = 1;
+    static final int WRITE = 2;
+
+    private final long[] reads = new long[Emu8086.MEMORY_SIZE >> 6];
+    private final long[] writes = new long[Emu8086.MEMORY_SIZE >> 6];
+    private final byte[] pages = new byte[Emu8086.MEMORY_SIZE >> DecodeCache.PAGE_SHIFT];
+    private int watchedPages;
+
+    private int hitAddress = -1;
+    private int hitKind;
+
+    /**
+     * Adds watches of the given kinds, or removes every watch on the range when {@code watched} is false.
+     */
+    void set(int address, int length, int kinds, boolean watched) {
+        for (int n = 0; n < length; n++) {
+            int a = (address + n) & Emu8086.ADDRESS_MASK;
+            if (!watched || (kinds & READ) != 0) {
+                set(reads, a, watched);
+            }
+            if (!watched || (kinds & WRITE) != 0) {
+                set(writes, a, watched);
+            }
+        }
+        int first = address >> DecodeCache.PAGE_SHIFT;
+        int last = (address + length - 1) >> DecodeCache.PAGE_SHIFT;
+        for (int page = first; page <= last; page++) {
+            int index = page & (pages.length - 1);
+            byte flags = (byte) ((any(reads, index) ? READ : 0) | (any(writes, index) ? WRITE : 0));
+            if ((pages[index] != 0) != (flags != 0)) {
+                watchedPages += flags != 0 ? 1 : -1;
+            }
+            pages[index] = flags;
+        }
+    }
+
+    private static void set(long[] bits, int address, boolean value) {
+        if (value) {
+            bits[address >> 6] |= 1L << address;
+        } else {
+            bits[address >> 6] &= ~(1L << address);
+        }
+    }
+
+    private static boolean any(long[] bits, int page) {
+        int first = page << (DecodeCache.PAGE_SHIFT - 6);
+        for (int i = first; i < first + (DecodeCache.PAGE_SIZE >> 6); i++) {
+            if (bits[i] != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean isEmpty() {
+        return watchedPages == 0;
+    }
+
+    void check(int address, int length, int kind) {
+        int last = (address + length - 1) & Emu8086.ADDRESS_MASK;
+        if ((pages[address >> DecodeCache.PAGE_SHIFT] & kind) == 0 && (pages[last >> DecodeCache.PAGE_SHIFT] & kind) == 0) {
+            return;
+        }
+        long[] bits = kind == READ ? reads : writes;
+        for (int n = 0; n < length && hitAddress < 0; n++) {
+            int a = (address + n) & Emu8086.ADDRESS_MASK;
+            if ((bits[a >> 6] & (1L << a)) != 0) {
+                hitAddress = a;
+                hitKind = kind;
+            }
+        }
+    }
+
+    int hitAddress() {
+        return hitAddress;
+    }
+
+    int hitKind() {
+        return hitKind;
+    }
+
+    void clearHit() {
+        hitAddress = -1;
+    }
+}
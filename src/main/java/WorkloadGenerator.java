@@ -0,0 +1,585 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Generates large, deterministic instruction streams from the encodings in 8086.txt for throughput benchmarks. Every
+ * instruction is decoded again and dropped unless it decodes to the opcode and length it was generated for, so
+ * encodings that a later table line shadows never appear. The same seed and settings always produce the same bytes.
+ * <p>
+ * Executable workloads only use opcodes the emulator implements and fit in one code segment. They point DS, ES and SS
+ * at the segment after it so memory operands never modify the code, and wrap straight-line bodies in counted loop
+ * nests. Conditional and direct jumps in a body only skip forward over a few whole instructions. Decode-only workloads
+ * draw from every encoding in the table with random operands and fill up to the whole 1MB address space.
+ */
+public class WorkloadGenerator {
+    public enum Addressing {
+        REGISTER,
+        MEMORY,
+        DISP8,
+        DISP16,
+        DIRECT,
+    }
+
+    // Opcodes that Emu8086 executes
+    static final Set<Opcode> EMULATED = EnumSet.of(
+            Opcode.MOV, Opcode.ADD, Opcode.ADC, Opcode.SUB, Opcode.SBB, Opcode.CMP, Opcode.AND, Opcode.OR, Opcode.XOR,
+            Opcode.TEST, Opcode.INC, Opcode.DEC, Opcode.NEG, Opcode.NOT,
+            Opcode.JE, Opcode.JNE, Opcode.JL, Opcode.JNL, Opcode.JLE, Opcode.JNLE, Opcode.JB, Opcode.JNB,
+            Opcode.JBE, Opcode.JNBE, Opcode.JP, Opcode.JNP, Opcode.JO, Opcode.JNO, Opcode.JS, Opcode.JNS,
+            Opcode.LOOP, Opcode.LOOPZ, Opcode.LOOPNZ, Opcode.JCXZ, Opcode.JMP,
+            Opcode.MOVS, Opcode.CMPS, Opcode.SCAS, Opcode.LODS, Opcode.STDS,
+            Opcode.CLC, Opcode.CMC, Opcode.STC, Opcode.CLD, Opcode.STD, Opcode.CLI, Opcode.STI);
+    static final String DEFAULT_MIX = "MOV:8,ADD:4,SUB:3,CMP:3,AND:2,OR:1,XOR:2,TEST:1,INC:2,DEC:2,ADC:1,SBB:1,NEG:1,"
+            + "JE:1,JNE:1,JB:1,JNB:1,JL:1,JNL:1,MOVS:1,LODS:1,STDS:1,CLC:1,STC:1";
+    static final String DEFAULT_ADDRESSING = "REGISTER:4,MEMORY:2,DISP8:2,DISP16:1,DIRECT:1";
+
+    static final int DATA_SEGMENT = 0x1000;
+    // Code runs from a single segment and must end before IP wraps back to its start
+    static final int MAX_CODE_SIZE = 0xFFFF;
+    static final int MAX_DEPTH = 3;
+
+    private static final Set<Opcode> RELATIVE_JUMPS = EnumSet.of(
+            Opcode.JE, Opcode.JNE, Opcode.JL, Opcode.JNL, Opcode.JLE, Opcode.JNLE, Opcode.JB, Opcode.JNB,
+            Opcode.JBE, Opcode.JNBE, Opcode.JP, Opcode.JNP, Opcode.JO, Opcode.JNO, Opcode.JS, Opcode.JNS,
+            Opcode.LOOP, Opcode.LOOPZ, Opcode.LOOPNZ, Opcode.JCXZ, Opcode.JMP);
+    private static final Set<Opcode> PREFIXES = EnumSet.of(Opcode.REP, Opcode.LOCK, Opcode.SEGMENT);
+    // Opcodes with register operands that they do not write
+    private static final Set<Opcode> READ_ONLY = EnumSet.of(Opcode.CMP, Opcode.TEST);
+    // mov ax, DATA_SEGMENT; mov ds, ax; mov es, ax; mov ss, ax
+    private static final byte[] PROLOGUE = {
+            (byte) 0xb8, (byte) DATA_SEGMENT, (byte) (DATA_SEGMENT >> 8),
+            (byte) 0x8e, (byte) 0xd8,
+            (byte) 0x8e, (byte) 0xc0,
+            (byte) 0x8e, (byte) 0xd0,
+    };
+    // Loop counters from the innermost loop outwards, never written by loop bodies
+    private static final int[] COUNTERS = {1, 2, 3};
+    private static final int CX = 1;
+    private static final int MAX_SKIP = 3;
+    private static final int MAX_ATTEMPTS = 1000;
+
+    private record Encoding(Opcode opcode, String opcodeByte, String modRegRm, int flags) {
+    }
+
+    private final Decoder decoder;
+    private final Map<Opcode, List<Encoding>> encodings = new EnumMap<>(Opcode.class);
+    private boolean executable = true;
+    private Opcode[] mix;
+    private int[] mixWeights;
+    private int[] addressingWeights;
+    private int depth = 2;
+    private int iterations = 16;
+    private int bodyInstructions = 32;
+
+    private final DecodeState decoded = new DecodeState();
+    private final byte[] instruction = new byte[16];
+    private final ByteBuffer instructionBuffer = ByteBuffer.wrap(instruction);
+    private final int[] fields = new int[128];
+    private final int[] widths = new int[128];
+    // Forward jumps waiting for their target: displacement position, displacement width, instructions left to skip
+    private final List<int[]> pendingJumps = new ArrayList<>();
+    private Random random;
+    private byte[] code;
+    private int position;
+    private int reserved;
+
+    public WorkloadGenerator(Decoder decoder, InputStream instructionTable) throws IOException {
+        this.decoder = decoder;
+        BufferedReader r = new BufferedReader(new InputStreamReader(instructionTable, StandardCharsets.UTF_8));
+        String line;
+        Opcode opcode = null;
+        while ((line = r.readLine()) != null) {
+            line = line.strip();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            if (line.startsWith("=")) {
+                opcode = Opcode.valueOf(line.substring(1).strip().toUpperCase());
+                continue;
+            }
+            if (PREFIXES.contains(opcode)) {
+                continue;
+            }
+
+            // Field names are as many characters wide as they have bits, which the decoder relies on as well
+            line = line.replaceAll("\\s+", "");
+            String opcodeByte = line.substring(0, 8)
+                    .replace("reg", "rrr")
+                    .replace("sr", "gg")
+                    .replace("xxx", "rrr");
+            line = line.substring(8);
+            String modRegRm = null;
+            if (line.startsWith("md")) {
+                modRegRm = line.substring(0, 8)
+                        .replace("md", "mm")
+                        .replace("r/m", "nnn")
+                        .replace("reg", "rrr")
+                        .replace("sr", "gg")
+                        .replace("yyy", "ggg");
+                line = line.substring(8);
+            }
+            int flags = 0;
+            for (OpcodeFlags flag : OpcodeFlags.values()) {
+                if (line.toUpperCase().contains(flag.name())) {
+                    flags |= flag.mask;
+                }
+            }
+            encodings.computeIfAbsent(opcode, o -> new ArrayList<>()).add(new Encoding(opcode, opcodeByte, modRegRm, flags));
+        }
+        setOpcodeMix(DEFAULT_MIX);
+        setAddressingMix(DEFAULT_ADDRESSING);
+    }
+
+    /**
+     * Creates a generator for the bundled instruction table.
+     */
+    public static WorkloadGenerator load() throws IOException {
+        try (InputStream table = WorkloadGenerator.class.getResourceAsStream("8086.txt")) {
+            if (table == null) {
+                throw new IOException("Missing instruction table");
+            }
+            return new WorkloadGenerator(Decoder.shared(), table);
+        }
+    }
+
+    /**
+     * Selects executable workloads, or decode-only workloads that may use any encoding. Switching resets the opcode
+     * mix to the default for the mode: {@link #DEFAULT_MIX}, or every opcode in the table with the same weight.
+     */
+    public void setExecutable(boolean executable) {
+        this.executable = executable;
+        if (executable) {
+            setOpcodeMix(DEFAULT_MIX);
+        } else {
+            StringBuilder all = new StringBuilder();
+            for (Opcode opcode : encodings.keySet()) {
+                all.append(all.isEmpty() ? "" : ",").append(opcode).append(":1");
+            }
+            setOpcodeMix(all.toString());
+        }
+    }
+
+    /**
+     * Sets the relative opcode weights, for example {@code MOV:8,ADD:4,JNE:1}.
+     */
+    public void setOpcodeMix(String mix) {
+        Map<Opcode, Integer> weights = weights(mix, Opcode.class);
+        for (Opcode opcode : weights.keySet()) {
+            if (!encodings.containsKey(opcode)) {
+                throw new IllegalArgumentException("No encodings for " + opcode);
+            }
+            if (executable && !EMULATED.contains(opcode)) {
+                throw new IllegalArgumentException(opcode + " is not emulated");
+            }
+        }
+        this.mix = weights.keySet().toArray(new Opcode[0]);
+        this.mixWeights = weights.values().stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Sets the relative weights of the r/m operand forms, for example {@code REGISTER:4,DISP8:1}.
+     */
+    public void setAddressingMix(String mix) {
+        Map<Addressing, Integer> weights = weights(mix, Addressing.class);
+        addressingWeights = new int[Addressing.values().length];
+        weights.forEach((addressing, weight) -> addressingWeights[addressing.ordinal()] = weight);
+    }
+
+    /**
+     * Sets the loop structure of executable workloads: nests of {@code depth} loops (at most {@link #MAX_DEPTH})
+     * that each run {@code iterations} times around a body of {@code bodyInstructions} generated instructions.
+     * Nests are repeated until the workload reaches its size. Depth 0 generates straight-line code.
+     */
+    public void setLoops(int depth, int iterations, int bodyInstructions) {
+        if (depth < 0 || depth > MAX_DEPTH) {
+            throw new IllegalArgumentException("Loop depth must be between 0 and " + MAX_DEPTH + ": " + depth);
+        }
+        if (iterations < 1 || iterations > 0xFFFF) {
+            throw new IllegalArgumentException("Loop iterations must be between 1 and 65535: " + iterations);
+        }
+        if (bodyInstructions < 1) {
+            throw new IllegalArgumentException("Loop bodies need at least one instruction: " + bodyInstructions);
+        }
+        this.depth = depth;
+        this.iterations = iterations;
+        this.bodyInstructions = bodyInstructions;
+    }
+
+    private static <E extends Enum<E>> Map<E, Integer> weights(String mix, Class<E> type) {
+        Map<E, Integer> weights = new EnumMap<>(type);
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.strip().split(":");
+            int weight = parts.length > 1 ? Integer.parseInt(parts[1].strip()) : 1;
+            if (weight < 0) {
+                throw new IllegalArgumentException("Negative weight: " + entry);
+            }
+            if (weight > 0) {
+                weights.put(Enum.valueOf(type, parts[0].strip().toUpperCase()), weight);
+            }
+        }
+        if (weights.isEmpty()) {
+            throw new IllegalArgumentException("Empty mix: " + mix);
+        }
+        return weights;
+    }
+
+    /**
+     * Generates a workload of at most {@code size} bytes.
+     */
+    public byte[] generate(long seed, int size) {
+        int limit = executable ? MAX_CODE_SIZE : Emu8086.MEMORY_SIZE;
+        if (size < 1 || size > limit) {
+            throw new IllegalArgumentException("Workload size must be between 1 and " + limit + " bytes: " + size);
+        }
+        random = new Random(seed);
+        code = new byte[size];
+        position = 0;
+        pendingJumps.clear();
+        reserved = 0;
+
+        if (!executable) {
+            while (emitInstruction()) {
+            }
+            return Arrays.copyOf(code, position);
+        }
+
+        for (int level = 0; level < depth; level++) {
+            reserved |= 1 << COUNTERS[level];
+        }
+        emit(PROLOGUE);
+        int end;
+        do {
+            end = position;
+        } while (emitNest(depth));
+        if (end == PROLOGUE.length) {
+            throw new IllegalArgumentException("Workload size too small for a single loop nest: " + size);
+        }
+        return Arrays.copyOf(code, end);
+    }
+
+    private boolean emitNest(int level) {
+        flushJumps();
+        if (level == 0) {
+            for (int n = 0; n < bodyInstructions; n++) {
+                if (!emitInstruction()) {
+                    return false;
+                }
+            }
+            flushJumps();
+            return true;
+        }
+
+        int counter = COUNTERS[level - 1];
+        if (!fits(3)) {
+            return false;
+        }
+        // mov counter, iterations
+        emit(0xb8 | counter, iterations, iterations >> 8);
+        int top = position;
+        if (!emitNest(level - 1)) {
+            return false;
+        }
+        return emitBackEdge(counter, top);
+    }
+
+    private boolean emitBackEdge(int counter, int top) {
+        if (counter == CX && top - (position + 2) >= Byte.MIN_VALUE) {
+            if (!fits(2)) {
+                return false;
+            }
+            // loop top
+            emit(0xe2, top - (position + 2));
+            return true;
+        }
+        if (!fits(3 + 2)) {
+            return false;
+        }
+        // sub counter, 1
+        emit(0x83, 0xe8 | counter, 1);
+        if (top - (position + 2) >= Byte.MIN_VALUE) {
+            // jne top
+            emit(0x75, top - (position + 2));
+            return true;
+        }
+        if (!fits(2 + 3)) {
+            return false;
+        }
+        // je +3; jmp top
+        emit(0x74, 3);
+        int displacement = top - (position + 3);
+        emit(0xe9, displacement, displacement >> 8);
+        return true;
+    }
+
+    private boolean emitInstruction() {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            Opcode opcode = mix[pick(mixWeights)];
+            List<Encoding> choices = encodings.get(opcode);
+            Encoding encoding = choices.get(random.nextInt(choices.size()));
+            int length = encode(encoding);
+            if (!isUsable(encoding, length)) {
+                continue;
+            }
+            if (!fits(length)) {
+                return false;
+            }
+            System.arraycopy(instruction, 0, code, position, length);
+            position += length;
+
+            for (int n = pendingJumps.size() - 1; n >= 0; n--) {
+                int[] jump = pendingJumps.get(n);
+                if (--jump[2] == 0) {
+                    patch(jump);
+                    pendingJumps.remove(n);
+                }
+            }
+            if (executable && RELATIVE_JUMPS.contains(opcode)) {
+                int width = (encoding.flags & OpcodeFlags.SINT16.mask) != 0 ? 2 : 1;
+                int[] jump = {position - width, width, random.nextInt(MAX_SKIP + 1)};
+                if (jump[2] == 0) {
+                    patch(jump);
+                } else {
+                    pendingJumps.add(jump);
+                }
+            }
+            return true;
+        }
+        throw new IllegalStateException("No usable instruction in the opcode mix after " + MAX_ATTEMPTS + " attempts");
+    }
+
+    private int encode(Encoding encoding) {
+        for (char field : "dwsvzrg".toCharArray()) {
+            fields[field] = random.nextInt(8);
+        }
+        int length = 0;
+        instruction[length++] = (byte) fill(encoding.opcodeByte);
+
+        int mod = 0;
+        int rm = 0;
+        if (encoding.modRegRm != null) {
+            Addressing addressing = Addressing.values()[pick(addressingWeights)];
+            rm = random.nextInt(8);
+            switch (addressing) {
+                case REGISTER -> mod = 0b11;
+                case MEMORY -> rm = rm == 0b110 ? 0b111 : rm;
+                case DISP8 -> mod = 0b01;
+                case DISP16 -> mod = 0b10;
+                case DIRECT -> rm = 0b110;
+            }
+            fields['m'] = mod;
+            fields['n'] = rm;
+            instruction[length++] = (byte) fill(encoding.modRegRm);
+        }
+        boolean isWide = encoding.opcodeByte.indexOf('w') >= 0 && (fields['w'] & 1) != 0;
+        boolean isSignExtend = encoding.opcodeByte.indexOf('s') >= 0 && (fields['s'] & 1) != 0;
+        int extra = 0;
+        if (encoding.modRegRm != null) {
+            extra += mod == 0b01 ? 1 : mod == 0b10 || (mod == 0b00 && rm == 0b110) ? 2 : 0;
+        }
+        int flags = encoding.flags;
+        if ((flags & OpcodeFlags.ADDRW.mask) != 0) {
+            extra += 2;
+        }
+        if ((flags & OpcodeFlags.DATAW.mask) != 0) {
+            extra += isWide ? 2 : 1;
+        } else if ((flags & OpcodeFlags.DATAS.mask) != 0) {
+            extra += isWide && !isSignExtend ? 2 : 1;
+        } else if ((flags & (OpcodeFlags.UINT8.mask | OpcodeFlags.SINT8.mask)) != 0) {
+            extra += 1;
+        } else if ((flags & (OpcodeFlags.UINT16.mask | OpcodeFlags.SINT16.mask)) != 0) {
+            extra += 2;
+        } else if ((flags & OpcodeFlags.FAR.mask) != 0) {
+            extra += 4;
+        }
+        for (int n = 0; n < extra; n++) {
+            instruction[length++] = (byte) random.nextInt(256);
+        }
+        return length;
+    }
+
+    private int fill(String pattern) {
+        Arrays.fill(widths, 0);
+        for (int i = 0; i < pattern.length(); i++) {
+            widths[pattern.charAt(i)]++;
+        }
+        int value = 0;
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            int bit = switch (c) {
+                case '0' -> 0;
+                case '1' -> 1;
+                default -> (fields[c] >> --widths[c]) & 1;
+            };
+            value = (value << 1) | bit;
+        }
+        return value;
+    }
+
+    private boolean isUsable(Encoding encoding, int length) {
+        try {
+            decoder.decode(decoded, instructionBuffer, 0);
+        } catch (IOException e) {
+            return false;
+        }
+        if (decoded.opcode != encoding.opcode || decoded.length != length) {
+            return false;
+        }
+        return !executable || isExecutable(decoded);
+    }
+
+    private boolean isExecutable(DecodeState i) {
+        int operands = i.operands;
+        if ((operands & DecodeState.REG_REGISTER) != 0 && i.reg >= 8) {
+            // Segment registers stay pointed at the data segment
+            return false;
+        }
+        switch (i.opcode) {
+            case JMP -> {
+                // Only the near relative forms, E9 and EB, have a displacement to patch
+                return (operands & DecodeState.RM_OPERAND) == 0 && !i.isFar;
+            }
+            case LOOP, LOOPZ, LOOPNZ -> {
+                return (reserved & (1 << CX)) == 0;
+            }
+            default -> {
+                if (RELATIVE_JUMPS.contains(i.opcode) || READ_ONLY.contains(i.opcode)) {
+                    return true;
+                }
+            }
+        }
+
+        // The destination follows the operand order used by Emu8086.arithmetic
+        int destination;
+        if ((operands & DecodeState.RM_OPERAND) == 0) {
+            if ((operands & DecodeState.REG_REGISTER) == 0) {
+                return true;
+            }
+            destination = i.reg;
+        } else if ((operands & DecodeState.REG_REGISTER) == 0 || !i.isToReg) {
+            if ((operands & DecodeState.RM_REGISTER) == 0) {
+                return true;
+            }
+            destination = i.rm;
+        } else {
+            destination = i.reg;
+        }
+        int slot = i.isWide ? destination : destination & 3;
+        return (reserved & (1 << slot)) == 0;
+    }
+
+    private void flushJumps() {
+        for (int[] jump : pendingJumps) {
+            patch(jump);
+        }
+        pendingJumps.clear();
+    }
+
+    private void patch(int[] jump) {
+        int displacement = position - (jump[0] + jump[1]);
+        code[jump[0]] = (byte) displacement;
+        if (jump[1] == 2) {
+            code[jump[0] + 1] = (byte) (displacement >> 8);
+        }
+    }
+
+    private int pick(int[] weights) {
+        int total = 0;
+        for (int weight : weights) {
+            total += weight;
+        }
+        int value = random.nextInt(total);
+        for (int i = 0; ; i++) {
+            value -= weights[i];
+            if (value < 0) {
+                return i;
+            }
+        }
+    }
+
+    private boolean fits(int length) {
+        return position + length <= code.length;
+    }
+
+    private void emit(byte[] bytes) {
+        System.arraycopy(bytes, 0, code, position, bytes.length);
+        position += bytes.length;
+    }
+
+    private void emit(int... bytes) {
+        for (int b : bytes) {
+            code[position++] = (byte) b;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        long seed = 1;
+        int size = 64 * 1024;
+        int count = 1;
+        String mix = null;
+        String addressing = null;
+        String loops = null;
+        boolean decodeOnly = false;
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].startsWith("--seed=")) {
+                seed = Long.parseLong(args[i].substring("--seed=".length()));
+            } else if (args[i].startsWith("--size=")) {
+                size = Integer.parseInt(args[i].substring("--size=".length()));
+            } else if (args[i].startsWith("--count=")) {
+                count = Integer.parseInt(args[i].substring("--count=".length()));
+            } else if (args[i].startsWith("--mix=")) {
+                mix = args[i].substring("--mix=".length());
+            } else if (args[i].startsWith("--addressing=")) {
+                addressing = args[i].substring("--addressing=".length());
+            } else if (args[i].startsWith("--loops=")) {
+                loops = args[i].substring("--loops=".length());
+            } else if (args[i].equals("--decode-only")) {
+                decodeOnly = true;
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        if (args.length == 0) {
+            System.err.println("Usage: WorkloadGenerator [--seed=<n>] [--size=<bytes>] [--count=<n>] [--mix=<op:weight,...>]"
+                    + " [--addressing=<mode:weight,...>] [--loops=<depth>,<iterations>,<body>] [--decode-only] <output>");
+            System.exit(1);
+        }
+
+        WorkloadGenerator generator = load();
+        generator.setExecutable(!decodeOnly);
+        if (mix != null) {
+            generator.setOpcodeMix(mix);
+        }
+        if (addressing != null) {
+            generator.setAddressingMix(addressing);
+        }
+        if (loops != null) {
+            String[] parts = loops.split(",");
+            generator.setLoops(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+        }
+
+        // Several workloads go to a directory, one file per seed, ready for --batch
+        Path output = Paths.get(args[args.length - 1]);
+        if (count > 1) {
+            Files.createDirectories(output);
+        }
+        for (int n = 0; n < count; n++) {
+            Path file = count > 1 ? output.resolve(String.format("workload-%d.bin", seed + n)) : output;
+            Files.write(file, generator.generate(seed + n, size));
+        }
+    }
+}
@@ -0,0 +1,59 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks that the decode/execute loops allocate nothing per retired instruction once they are warmed up.
+ */
+class AllocationTest {
+    private static final String LISTING = "listing45";
+    private static final int WARM_UP_RUNS = 20_000;
+    private static final int MEASURED_RUNS = 1_000;
+
+    private interface Engine {
+        void run(Emu8086 cpu) throws IOException;
+    }
+
+    @Test
+    void switchInterpreter() throws IOException {
+        assertEquals(0.0, allocatedBytesPerInstruction(Emu8086::run));
+    }
+
+    @Test
+    void threadedCode() throws IOException {
+        assertEquals(0.0, allocatedBytesPerInstruction(Emu8086::runThreaded));
+    }
+
+    private static double allocatedBytesPerInstruction(Engine engine) throws IOException {
+        ByteBuffer image;
+        try (InputStream in = AllocationTest.class.getResourceAsStream("/" + LISTING)) {
+            image = ByteBuffer.wrap(in.readAllBytes());
+        }
+        Emu8086 cpu = new Emu8086();
+        for (int i = 0; i < WARM_UP_RUNS; i++) {
+            cpu.reset();
+            cpu.load(image);
+            engine.run(cpu);
+        }
+
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long allocated = 0;
+        long instructions = 0;
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            cpu.reset();
+            cpu.load(image);
+            long before = threads.getThreadAllocatedBytes(thread);
+            engine.run(cpu);
+            allocated += threads.getThreadAllocatedBytes(thread) - before;
+            instructions += cpu.instructions();
+        }
+        return (double) allocated / instructions;
+    }
+}
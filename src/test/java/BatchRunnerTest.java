@@ -0,0 +1,62 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Runs batches on one worker, so every program reuses the CPU and JIT state of the programs before it.
+ */
+class BatchRunnerTest {
+    // MOV CX, 0x1000; L: INC AX; LOOP L
+    private static final byte[] INCREMENT = Engines.program(0xb9, 0x00, 0x10, 0x40, 0xe2, 0xfd);
+    // MOV CX, 0x1000; L: DEC AX; LOOP L
+    private static final byte[] DECREMENT = Engines.program(0xb9, 0x00, 0x10, 0x48, 0xe2, 0xfd);
+    // L: JMP L
+    private static final byte[] ENDLESS = Engines.program(0xeb, 0xfe);
+
+    @Test
+    void reusedJitRecompilesChangedCode() throws IOException, InterruptedException {
+        for (String mode : new String[]{"--switch", "--threaded", "--jit"}) {
+            BatchRunner.Result[] results = run(mode, Long.MAX_VALUE, INCREMENT, DECREMENT);
+            assertNull(results[0].error(), mode);
+            assertEquals(0x1000, results[0].registers()[Register.AX.number], mode);
+            assertNull(results[1].error(), mode);
+            assertEquals(0xf000, results[1].registers()[Register.AX.number], mode);
+        }
+    }
+
+    @Test
+    void instructionLimitFailsOnlyThatProgram() throws IOException, InterruptedException {
+        for (String mode : new String[]{"--switch", "--threaded", "--jit"}) {
+            BatchRunner.Result[] results = run(mode, 100_000, ENDLESS, INCREMENT);
+            assertEquals("Instruction limit exceeded: 100000", results[0].error(), mode);
+            assertNull(results[1].error(), mode);
+            assertEquals(0x1000, results[1].registers()[Register.AX.number], mode);
+        }
+    }
+
+    private static BatchRunner.Result[] run(String mode, long maxInstructions, byte[]... programs)
+            throws IOException, InterruptedException {
+        Path directory = Files.createTempDirectory("batch");
+        try {
+            for (int i = 0; i < programs.length; i++) {
+                Files.write(directory.resolve("program" + i), programs[i]);
+            }
+            BatchRunner runner = new BatchRunner(Decoder.shared(), mode, 1);
+            runner.setMaxInstructions(maxInstructions);
+            return runner.run(BatchRunner.programs(directory));
+        } finally {
+            try (var files = Files.list(directory)) {
+                for (Path file : files.toList()) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+}
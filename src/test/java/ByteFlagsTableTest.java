@@ -0,0 +1,80 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks every (a, b, carry) entry of the byte flags table against flags computed bit by bit.
+ */
+class ByteFlagsTableTest {
+    private static final int[] OPERATIONS = {Alu.ADD, Alu.ADC, Alu.SUB, Alu.SBB, Alu.AND, Alu.OR, Alu.XOR};
+
+    @Test
+    void binaryOperations() throws IOException {
+        Emu8086 cpu = new Emu8086();
+        for (int operation : OPERATIONS) {
+            for (int a = 0; a < 256; a++) {
+                for (int b = 0; b < 256; b++) {
+                    for (int carry = 0; carry < 2; carry++) {
+                        cpu.setFlags(carry << Flag.CARRY.bitIndex);
+                        cpu.alu(operation, a, b, false);
+                        int actual = cpu.getFlags() & Alu.ARITHMETIC_FLAGS;
+                        int expected = expected(operation, a, b, carry);
+                        int op = operation, x = a, y = b, c = carry;
+                        assertEquals(expected, actual,
+                                () -> String.format("operation %d a=0x%02x b=0x%02x carry=%d", op, x, y, c));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void incrementAndDecrement() throws IOException {
+        Emu8086 cpu = new Emu8086();
+        for (int a = 0; a < 256; a++) {
+            for (int carry = 0; carry < 2; carry++) {
+                for (int operation : new int[]{Alu.INC, Alu.DEC}) {
+                    cpu.setFlags(carry << Flag.CARRY.bitIndex);
+                    cpu.unary(operation, a, false);
+                    int actual = cpu.getFlags() & Alu.ARITHMETIC_FLAGS;
+                    int expected = expected(operation == Alu.INC ? Alu.ADD : Alu.SUB, a, 1, 0)
+                            & Flag.CARRY.clearMask | carry << Flag.CARRY.bitIndex;
+                    int op = operation, x = a, c = carry;
+                    assertEquals(expected, actual,
+                            () -> String.format("operation %d a=0x%02x carry=%d", op, x, c));
+                }
+            }
+        }
+    }
+
+    private static int expected(int operation, int a, int b, int carry) {
+        boolean subtract = operation == Alu.SUB || operation == Alu.SBB;
+        int carryIn = operation == Alu.ADC || operation == Alu.SBB ? carry : 0;
+        int result;
+        boolean carryOut = false;
+        boolean auxiliaryCarry = false;
+        boolean overflow = false;
+        switch (operation) {
+            case Alu.AND -> result = a & b;
+            case Alu.OR -> result = a | b;
+            case Alu.XOR -> result = a ^ b;
+            default -> {
+                int signed = subtract ? (byte) a - (byte) b - carryIn : (byte) a + (byte) b + carryIn;
+                result = (subtract ? a - b - carryIn : a + b + carryIn) & 0xFF;
+                carryOut = subtract ? a < b + carryIn : a + b + carryIn > 0xFF;
+                auxiliaryCarry = subtract ? (a & 0xF) < (b & 0xF) + carryIn : (a & 0xF) + (b & 0xF) + carryIn > 0xF;
+                overflow = signed < -128 || signed > 127;
+            }
+        }
+        int flags = 0;
+        flags |= carryOut ? Flag.CARRY.setTestMask : 0;
+        flags |= Integer.bitCount(result) % 2 == 0 ? Flag.PARITY.setTestMask : 0;
+        flags |= auxiliaryCarry ? Flag.AUXILIARY_CARRY.setTestMask : 0;
+        flags |= result == 0 ? Flag.ZERO.setTestMask : 0;
+        flags |= (result & 0x80) != 0 ? Flag.SIGN.setTestMask : 0;
+        flags |= overflow ? Flag.OVERFLOW.setTestMask : 0;
+        return flags;
+    }
+}
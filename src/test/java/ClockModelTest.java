@@ -0,0 +1,39 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks the odd address word penalty for a memory source and a memory destination.
+ */
+class ClockModelTest {
+    // ADD AX, [BX]: 9 clocks plus 5 for the effective address, one word read
+    private static final int[] ADD_TO_REG = {0x03, 0x07};
+    // ADD [BX], AX: 16 clocks plus 5 for the effective address, one word read and one written
+    private static final int[] ADD_TO_MEMORY = {0x01, 0x07};
+
+    @Test
+    void registerDestinationReadsOnce() throws IOException {
+        assertEquals(14, clocks(2, ADD_TO_REG));
+        assertEquals(18, clocks(1, ADD_TO_REG));
+    }
+
+    @Test
+    void memoryDestinationReadsAndWrites() throws IOException {
+        assertEquals(21, clocks(2, ADD_TO_MEMORY));
+        assertEquals(29, clocks(1, ADD_TO_MEMORY));
+    }
+
+    private static int clocks(int bx, int[] instruction) throws IOException {
+        // MOV BX, bx followed by the instruction
+        byte[] program = Engines.program(0xbb, bx, 0x00, instruction[0], instruction[1]);
+        Emu8086 cpu = new Emu8086();
+        cpu.load(ByteBuffer.wrap(program));
+        ClockModel model = new ClockModel();
+        cpu.setClockModel(model);
+        cpu.run(2);
+        return model.last();
+    }
+}
@@ -0,0 +1,88 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks breakpoints and watchpoints, including string instructions that run element by element while watched.
+ */
+class DebuggerTest {
+    private static final int AX = Register.AX.number;
+    private static final int CX = Register.CX.number;
+
+    @Test
+    void breakpointStopsEveryTimeAndResumes() throws IOException {
+        // MOV CX, 3; L: INC AX; LOOP L
+        Debugger debugger = debugger(0xb9, 0x03, 0x00, 0x40, 0xe2, 0xfd);
+        debugger.setBreakpoint(3);
+        for (int ax = 0; ax < 3; ax++) {
+            assertEquals(Debugger.Stop.BREAKPOINT, debugger.run());
+            assertEquals(3, debugger.cpu().fetchAddress());
+            assertEquals(ax, debugger.cpu().registers[AX]);
+        }
+        assertEquals(Debugger.Stop.HALTED, debugger.run());
+        assertEquals(3, debugger.cpu().registers[AX]);
+    }
+
+    @Test
+    void writeWatchpointReportsLinearAddress() throws IOException {
+        // MOV AX, 0x10; MOV DS, AX; MOV BX, 0x101; MOV [BX], AX; MOV AX, [BX]
+        Debugger debugger = debugger(0xb8, 0x10, 0x00, 0x8e, 0xd8, 0xbb, 0x01, 0x01, 0x89, 0x07, 0x8b, 0x07);
+        debugger.watch(0x202, 1, false, true);
+        assertEquals(Debugger.Stop.WATCHPOINT, debugger.run());
+        assertEquals(0x202, debugger.watchAddress());
+        assertTrue(debugger.isWatchWrite());
+        assertEquals(10, debugger.cpu().fetchAddress());
+        // The read of the same word is not watched
+        assertEquals(Debugger.Stop.HALTED, debugger.run());
+    }
+
+    @Test
+    void readWatchpointReportsLinearAddress() throws IOException {
+        // MOV AX, 0x10; MOV DS, AX; MOV BX, 0x101; MOV [BX], AX; MOV AX, [BX]
+        Debugger debugger = debugger(0xb8, 0x10, 0x00, 0x8e, 0xd8, 0xbb, 0x01, 0x01, 0x89, 0x07, 0x8b, 0x07);
+        debugger.watch(0x201, 2, true, false);
+        assertEquals(Debugger.Stop.WATCHPOINT, debugger.run());
+        assertEquals(0x201, debugger.watchAddress());
+        assertFalse(debugger.isWatchWrite());
+        assertEquals(12, debugger.cpu().fetchAddress());
+    }
+
+    @Test
+    void repeatedMoveHitsWatchedSourceAndDestination() throws IOException {
+        // MOV AX, 0x10; MOV ES, AX; MOV SI, 0x100; MOV DI, 0x100; MOV CX, 16; REP MOVSB
+        int[] program = {0xb8, 0x10, 0x00, 0x8e, 0xc0, 0xbe, 0x00, 0x01, 0xbf, 0x00, 0x01, 0xb9, 0x10, 0x00, 0xf3, 0xa4};
+        Debugger debugger = debugger(program);
+        debugger.watch(0x205, 1, false, true);
+        assertEquals(Debugger.Stop.WATCHPOINT, debugger.run());
+        assertEquals(0x205, debugger.watchAddress());
+        assertTrue(debugger.isWatchWrite());
+        assertEquals(0, debugger.cpu().registers[CX]);
+
+        debugger = debugger(program);
+        debugger.watch(0x10c, 4, true, false);
+        assertEquals(Debugger.Stop.WATCHPOINT, debugger.run());
+        assertEquals(0x10c, debugger.watchAddress());
+        assertFalse(debugger.isWatchWrite());
+    }
+
+    @Test
+    void repeatedStoreHitsWatchedWord() throws IOException {
+        // MOV DI, 0x300; MOV CX, 8; STD; REP STOSW
+        Debugger debugger = debugger(0xbf, 0x00, 0x03, 0xb9, 0x08, 0x00, 0xfd, 0xf3, 0xab);
+        debugger.watch(0x2f5, 1, false, true);
+        assertEquals(Debugger.Stop.WATCHPOINT, debugger.run());
+        assertEquals(0x2f5, debugger.watchAddress());
+        assertTrue(debugger.isWatchWrite());
+    }
+
+    private static Debugger debugger(int... program) throws IOException {
+        Emu8086 cpu = new Emu8086();
+        cpu.load(ByteBuffer.wrap(Engines.program(program)));
+        return new Debugger(cpu);
+    }
+}
@@ -0,0 +1,54 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Runs small programs on every execution engine and compares the final machine state with the switch interpreter.
+ * The JIT compiles a block the first time it is reached.
+ */
+final class Engines {
+    private Engines() {
+    }
+
+    static byte[] program(int... bytes) {
+        byte[] program = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            program[i] = (byte) bytes[i];
+        }
+        return program;
+    }
+
+    static Emu8086 run(String mode, byte[] program) throws IOException {
+        Emu8086 cpu = new Emu8086();
+        cpu.load(ByteBuffer.wrap(program));
+        switch (mode) {
+            case "--switch" -> cpu.run();
+            case "--threaded" -> cpu.runThreaded();
+            case "--jit" -> cpu.runJit(new Jit(Emu8086.MEMORY_SIZE, 1));
+            default -> throw new IllegalArgumentException("Unknown mode: " + mode);
+        }
+        return cpu;
+    }
+
+    static Emu8086 assertSameState(byte[] program) throws IOException {
+        Emu8086 expected = run("--switch", program);
+        for (String mode : new String[]{"--threaded", "--jit"}) {
+            assertSameState(mode, expected, run(mode, program));
+        }
+        return expected;
+    }
+
+    static void assertSameState(String label, Emu8086 expected, Emu8086 actual) {
+        assertArrayEquals(expected.registers, actual.registers, label + " registers");
+        assertEquals(expected.ip, actual.ip, label + " ip");
+        assertEquals(expected.getFlags(), actual.getFlags(), label + " flags");
+        assertEquals(expected.instructions(), actual.instructions(), label + " instructions");
+        // A fork copies pages from its snapshot only when it accesses them
+        expected.unshare(0, Emu8086.MEMORY_SIZE);
+        actual.unshare(0, Emu8086.MEMORY_SIZE);
+        assertEquals(List.of(), MemoryDiff.compare(expected.memory(), actual.memory()), label + " memory");
+    }
+}
@@ -0,0 +1,36 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Flags written on one decode cache page and read on the next must not be treated as dead.
+ */
+class FlagLivenessTest {
+    @Test
+    void flagsReadAfterPageBoundary() throws IOException {
+        byte[] program = new byte[0x305];
+        // mov ax, 0xffff; mov bx, 1; jmp 0xfe
+        place(program, 0x000, 0xb8, 0xff, 0xff, 0xbb, 0x01, 0x00, 0xe9, 0xf5, 0x00);
+        // add ax, bx ending on the page boundary
+        place(program, 0x0fe, 0x01, 0xd8);
+        // adc dx, 0; mov ax, 0xffff; jmp 0x1ff
+        place(program, 0x100, 0x83, 0xd2, 0x00, 0xb8, 0xff, 0xff, 0xe9, 0xf6, 0x00);
+        // add ax, bx straddling the page boundary
+        place(program, 0x1ff, 0x01, 0xd8);
+        // sbb cx, 0; mov ax, 0xffff; add ax, bx; jmp 0x300
+        place(program, 0x201, 0x83, 0xd9, 0x00, 0xb8, 0xff, 0xff, 0x01, 0xd8, 0xe9, 0xf4, 0x00);
+        // jc 0x303; hlt; inc si; hlt
+        place(program, 0x300, 0x72, 0x01, 0xf4, 0x46, 0xf4);
+
+        Emu8086 cpu = Engines.assertSameState(program);
+        assertEquals(1, cpu.registers[Register.DX.number]);
+        assertEquals(0xffff, cpu.registers[Register.CX.number]);
+        assertEquals(1, cpu.registers[Register.SI.number]);
+    }
+
+    private static void place(byte[] program, int address, int... bytes) {
+        System.arraycopy(Engines.program(bytes), 0, program, address, bytes.length);
+    }
+}
@@ -0,0 +1,80 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * Checks that a fork shares the pages of its snapshot until it accesses them, and that parent and fork diverge
+ * independently afterwards.
+ */
+class ForkTest {
+    private static final int PROGRAM = 0;
+    private static final int FIRST = 0x10;
+    private static final int SECOND = 0x20;
+    private static final int THIRD = 0x30;
+
+    @Test
+    void forkCopiesPagesOnFirstAccess() throws IOException {
+        // MOV AX, 0x1234; MOV [0x1000], AX; MOV [0x2000], AX; MOV [0x3000], AX
+        Emu8086 parent = cpu(0xb8, 0x34, 0x12, 0xa3, 0x00, 0x10, 0xa3, 0x00, 0x20, 0xa3, 0x00, 0x30);
+        parent.run();
+        Snapshot snapshot = parent.snapshot();
+
+        Emu8086 child = Emu8086.fork(Decoder.shared(), snapshot);
+        assertEquals(4, child.sharedPages());
+        Snapshot untouched = child.snapshot();
+        for (int page : new int[]{PROGRAM, FIRST, SECOND, THIRD}) {
+            assertSame(snapshot.page(page), untouched.page(page));
+        }
+
+        child.setMemory(0x2000, true, 0xbeef);
+        assertEquals(3, child.sharedPages());
+        assertEquals(0x1234, child.getMemory(0x1000, true));
+        assertEquals(2, child.sharedPages());
+        parent.setMemory(0x3000, true, 0x5555);
+
+        assertEquals(0xbeef, child.getMemory(0x2000, true));
+        assertEquals(0x1234, parent.getMemory(0x2000, true));
+        assertEquals(0x34, snapshot.page(SECOND)[0]);
+        assertEquals(0x1234, child.getMemory(0x3000, true));
+        assertEquals(0x5555, parent.getMemory(0x3000, true));
+        assertEquals(List.of(new MemoryDiff.Range(0x2000, 0x2002)), child.diff(snapshot));
+
+        Snapshot written = child.snapshot();
+        assertNotSame(snapshot.page(SECOND), written.page(SECOND));
+        // Read but never written, so still the parent's array
+        assertSame(snapshot.page(FIRST), written.page(FIRST));
+        assertSame(snapshot.page(PROGRAM), written.page(PROGRAM));
+    }
+
+    @Test
+    void forkContinuesOnEveryEngine() throws IOException {
+        // MOV CX, 50; MOV BX, 0x200; L: ADD AX, CX; MOV [BX], AX; INC BX; INC BX; SUB DX, AX; LOOP L
+        int[] program = {0xb9, 0x32, 0x00, 0xbb, 0x00, 0x02, 0x01, 0xc8, 0x89, 0x07, 0x43, 0x43, 0x29, 0xc2, 0xe2, 0xf6};
+        Emu8086 parent = cpu(program);
+        parent.run(100);
+        Snapshot snapshot = parent.snapshot();
+
+        Emu8086 threaded = Emu8086.fork(Decoder.shared(), snapshot);
+        Emu8086 compiled = Emu8086.fork(Decoder.shared(), snapshot);
+        parent.run();
+        threaded.runThreaded();
+        compiled.runJit(new Jit(Emu8086.MEMORY_SIZE, 1));
+        // A fork counts instructions from zero
+        threaded.instructions += 100;
+        compiled.instructions += 100;
+        Engines.assertSameState("threaded", parent, threaded);
+        Engines.assertSameState("jit", parent, compiled);
+    }
+
+    private static Emu8086 cpu(int... program) throws IOException {
+        Emu8086 cpu = new Emu8086();
+        cpu.load(ByteBuffer.wrap(Engines.program(program)));
+        return cpu;
+    }
+}
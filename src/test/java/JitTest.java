@@ -0,0 +1,33 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class JitTest {
+    @Test
+    void storeIntoTheRunningBlock() throws IOException {
+        // mov cx, 100; top: mov [0x000a], cl; mov dx, bx; add ax, 0 (immediate patched by the store); loop top; hlt
+        byte[] program = Engines.program(
+                0xb9, 0x64, 0x00,
+                0x88, 0x0e, 0x0a, 0x00,
+                0x89, 0xda,
+                0x05, 0x00, 0x00,
+                0xe2, 0xf5,
+                0xf4);
+        Emu8086 cpu = Engines.assertSameState(program);
+        assertEquals(0x13ba, cpu.registers[Register.AX.number]);
+    }
+
+    @Test
+    void handlerStoreIntoTheRunningBlock() throws IOException {
+        // mov cx, 100; top: inc byte [0x0008]; add ax, 0 (immediate patched by the increment); loop top; hlt
+        byte[] program = Engines.program(
+                0xb9, 0x64, 0x00,
+                0xfe, 0x06, 0x08, 0x00,
+                0x05, 0x00, 0x00,
+                0xe2, 0xf7,
+                0xf4);
+        Engines.assertSameState(program);
+    }
+}
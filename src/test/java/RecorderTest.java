@@ -0,0 +1,52 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Records a loop with checkpoints every few instructions and seeks the replay back and forth across them, comparing
+ * each position with the switch interpreter stopped after the same number of instructions.
+ */
+class RecorderTest {
+    // MOV CX, 50; MOV BX, 0x200; L: ADD AX, CX; MOV [BX], AX; INC BX; INC BX; SUB DX, AX; LOOP L
+    private static final byte[] PROGRAM = Engines.program(
+            0xb9, 0x32, 0x00, 0xbb, 0x00, 0x02, 0x01, 0xc8, 0x89, 0x07, 0x43, 0x43, 0x29, 0xc2, 0xe2, 0xf6);
+    private static final long INSTRUCTIONS = 2 + 50 * 6;
+    private static final long[] SEEKS = {150, 151, 300, 3, INSTRUCTIONS, 77, 76, 0, 200, 13, 14, 299, 1};
+
+    @Test
+    void seeksMatchInterpreter() throws IOException {
+        Path log = Files.createTempFile("recording", ".log");
+        try {
+            Emu8086 cpu = new Emu8086();
+            cpu.load(ByteBuffer.wrap(PROGRAM));
+            try (OutputStream out = Files.newOutputStream(log)) {
+                Recorder recorder = new Recorder(out, 7);
+                cpu.setRecorder(recorder);
+                cpu.run();
+                cpu.setRecorder(null);
+                recorder.close();
+            }
+            assertEquals(INSTRUCTIONS, cpu.instructions());
+
+            try (Replay replay = new Replay(Decoder.shared(), log)) {
+                assertEquals(0, replay.start());
+                assertEquals(INSTRUCTIONS, replay.end());
+                for (long instruction : SEEKS) {
+                    replay.seek(instruction);
+                    Emu8086 expected = new Emu8086();
+                    expected.load(ByteBuffer.wrap(PROGRAM));
+                    expected.run(instruction);
+                    Engines.assertSameState("seek " + instruction, expected, replay.cpu());
+                }
+            }
+        } finally {
+            Files.delete(log);
+        }
+    }
+}
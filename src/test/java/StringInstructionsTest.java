@@ -0,0 +1,82 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Runs repeated string instructions that take the bulk paths on every engine, and once with an empty watchpoint set,
+ * which forces the element by element path.
+ */
+class StringInstructionsTest {
+    @Test
+    void overlappingMoves() throws IOException {
+        byte[] program = Engines.program(
+                // mov word [0x100], 0x2211; mov si, 0x100; mov di, 0x102; mov cx, 8; cld; rep movsb
+                0xc7, 0x06, 0x00, 0x01, 0x11, 0x22,
+                0xbe, 0x00, 0x01,
+                0xbf, 0x02, 0x01,
+                0xb9, 0x08, 0x00,
+                0xfc,
+                0xf3, 0xa4,
+                // mov word [0x120], 0x4433; mov word [0x122], 0x6655
+                0xc7, 0x06, 0x20, 0x01, 0x33, 0x44,
+                0xc7, 0x06, 0x22, 0x01, 0x55, 0x66,
+                // mov si, 0x122; mov di, 0x120; mov cx, 4; rep movsw
+                0xbe, 0x22, 0x01,
+                0xbf, 0x20, 0x01,
+                0xb9, 0x04, 0x00,
+                0xf3, 0xa5,
+                // hlt
+                0xf4);
+        Emu8086 cpu = assertSameAsElementwise(program);
+        // A forward move onto its own tail repeats the first word
+        for (int address = 0x100; address < 0x10a; address += 2) {
+            assertEquals(0x2211, cpu.memory().getShort(address) & 0xFFFF);
+        }
+        assertEquals(0x6655, cpu.memory().getShort(0x120) & 0xFFFF);
+    }
+
+    @Test
+    void compareUntilMismatch() throws IOException {
+        byte[] program = Engines.program(
+                // "ABCDX" at 0x200 and "ABCDY" at 0x300
+                0xc7, 0x06, 0x00, 0x02, 0x41, 0x42,
+                0xc7, 0x06, 0x02, 0x02, 0x43, 0x44,
+                0xc7, 0x06, 0x04, 0x02, 0x58, 0x00,
+                0xc7, 0x06, 0x00, 0x03, 0x41, 0x42,
+                0xc7, 0x06, 0x02, 0x03, 0x43, 0x44,
+                0xc7, 0x06, 0x04, 0x03, 0x59, 0x00,
+                // mov si, 0x200; mov di, 0x300; mov cx, 10; cld; repe cmpsb
+                0xbe, 0x00, 0x02,
+                0xbf, 0x00, 0x03,
+                0xb9, 0x0a, 0x00,
+                0xfc,
+                0xf3, 0xa6,
+                // mov si, 0x200; mov di, 0x300; mov bx, cx; mov cx, 5; repe cmpsw
+                0xbe, 0x00, 0x02,
+                0xbf, 0x00, 0x03,
+                0x89, 0xcb,
+                0xb9, 0x05, 0x00,
+                0xf3, 0xa7,
+                // hlt
+                0xf4);
+        Emu8086 cpu = assertSameAsElementwise(program);
+        // The byte compare stops after the fifth element, the word compare after the third
+        assertEquals(5, cpu.registers[Register.BX.number]);
+        assertEquals(2, cpu.registers[Register.CX.number]);
+        assertEquals(0x206, cpu.registers[Register.SI.number]);
+        assertEquals(0x306, cpu.registers[Register.DI.number]);
+    }
+
+    private static Emu8086 assertSameAsElementwise(byte[] program) throws IOException {
+        Emu8086 elementwise = new Emu8086();
+        elementwise.load(ByteBuffer.wrap(program));
+        elementwise.setWatchpoints(new Watchpoints());
+        elementwise.run();
+        Emu8086 cpu = Engines.assertSameState(program);
+        Engines.assertSameState("bulk", elementwise, cpu);
+        return cpu;
+    }
+}
@@ -0,0 +1,47 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ThreadedCodeTest {
+    @Test
+    void jumpIntoFusedCompare() throws IOException {
+        // cmp ax, bx
+        assertJumpIntoFusedPair(0x39, 0xd8, 1);
+    }
+
+    @Test
+    void jumpIntoFusedTest() throws IOException {
+        // test ax, bx
+        assertJumpIntoFusedPair(0x85, 0xd8, 0);
+    }
+
+    /**
+     * Runs a pair once from the top, then jumps straight to its JE with ZF set by an XOR, so the jump has to use the
+     * flags instead of the operands of the first instruction.
+     */
+    private static void assertJumpIntoFusedPair(int opcode, int modRegRm, int notTaken) throws IOException {
+        byte[] program = Engines.program(
+                // mov cx, 2; mov bx, 2; mov ax, 1
+                0xb9, 0x02, 0x00,
+                0xbb, 0x02, 0x00,
+                0xb8, 0x01, 0x00,
+                // 9: first instruction of the pair; 11: je 16
+                opcode, modRegRm,
+                0x74, 0x03,
+                // 13: inc di; jmp 17
+                0x47,
+                0xeb, 0x01,
+                // 16: inc si
+                0x46,
+                // 17: xor dx, dx; loop 11
+                0x31, 0xd2,
+                0xe2, 0xf6,
+                // 21: hlt
+                0xf4);
+        Emu8086 cpu = Engines.assertSameState(program);
+        assertEquals(notTaken, cpu.registers[Register.DI.number]);
+        assertEquals(2 - notTaken, cpu.registers[Register.SI.number]);
+    }
+}
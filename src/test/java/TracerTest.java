@@ -0,0 +1,36 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Checks that a failing trace output stops execution instead of blocking it.
+ */
+class TracerTest {
+    private static final OutputStream FAILING = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            throw new IOException("Disk full");
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            throw new IOException("Disk full");
+        }
+    };
+
+    @Test
+    void writerFailureStopsExecution() throws IOException {
+        Emu8086 cpu = new Emu8086();
+        // JMP $
+        cpu.load(ByteBuffer.wrap(Engines.program(0xeb, 0xfe)));
+        Tracer tracer = new Tracer(TraceLevel.FULL, FAILING);
+        cpu.setTracer(tracer);
+        assertThrows(UncheckedIOException.class, () -> cpu.run(100_000_000));
+        assertThrows(IOException.class, tracer::close);
+    }
+}
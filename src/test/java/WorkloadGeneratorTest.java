@@ -0,0 +1,43 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class WorkloadGeneratorTest {
+    @Test
+    void sameSeedGeneratesSameBytes() throws IOException {
+        for (boolean executable : new boolean[]{true, false}) {
+            WorkloadGenerator first = WorkloadGenerator.load();
+            WorkloadGenerator second = WorkloadGenerator.load();
+            first.setExecutable(executable);
+            second.setExecutable(executable);
+            assertArrayEquals(first.generate(42, 8192), second.generate(42, 8192));
+        }
+    }
+
+    @Test
+    void instructionsDecodeBackToBack() throws IOException {
+        for (boolean executable : new boolean[]{true, false}) {
+            WorkloadGenerator generator = WorkloadGenerator.load();
+            generator.setExecutable(executable);
+            for (long seed = 1; seed <= 8; seed++) {
+                byte[] workload = generator.generate(seed, 8192);
+                ByteBuffer memory = ByteBuffer.wrap(workload);
+                DecodeState instruction = new DecodeState();
+                int address = 0;
+                while (address < workload.length) {
+                    Decoder.shared().decode(instruction, memory, address);
+                    if (executable && instruction.opcode == Opcode.JMP) {
+                        assertFalse(instruction.isFar, "far JMP at " + address);
+                    }
+                    address += instruction.length;
+                }
+                assertEquals(workload.length, address, "seed " + seed);
+            }
+        }
+    }
+}